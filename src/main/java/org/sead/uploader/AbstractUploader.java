@@ -24,15 +24,28 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.json.JSONObject;
+import org.sead.uploader.util.BlockingExecutor;
+import org.sead.uploader.util.ChecksumCache;
 import org.sead.uploader.util.FileResource;
 import org.sead.uploader.util.ListResource;
 import org.sead.uploader.util.PublishedResource;
@@ -66,8 +79,14 @@ public abstract class AbstractUploader {
     private URL oremapURL = null;
     protected String spaceType = null;
 
-    private long globalFileCount = 0l;
-    private long totalBytes = 0L;
+    private final AtomicLong globalFileCount = new AtomicLong(0l);
+    private final AtomicLong totalBytes = new AtomicLong(0L);
+    // Files handed to an upload worker that have not finished yet - counted
+    // against -limit so that we don't start more files than allowed
+    private final AtomicLong pendingFileCount = new AtomicLong(0l);
+
+    protected int fileConcurrency = 1;
+    protected ExecutorService fileExecutor = null;
 
     protected boolean listonly = false;
 
@@ -82,9 +101,9 @@ public abstract class AbstractUploader {
 
     protected ResourceFactory rf = null;
 
-    protected HashMap<String, String> roDataIdToNewId = new HashMap<String, String>();
-    protected HashMap<String, String> roCollIdToNewId = new HashMap<String, String>();
-    protected HashMap<String, String> roFolderProxy = new HashMap<String, String>();
+    protected Map<String, String> roDataIdToNewId = new ConcurrentHashMap<String, String>();
+    protected Map<String, String> roCollIdToNewId = new ConcurrentHashMap<String, String>();
+    protected Map<String, String> roFolderProxy = new ConcurrentHashMap<String, String>();
 
     public void createLogFile(String name) {
         File outputFile = new File(name + "_" + System.currentTimeMillis() + ".log");
@@ -142,6 +161,24 @@ public abstract class AbstractUploader {
             } else if (arg.startsWith("-skip")) {
                 skip = Long.parseLong(arg.substring(arg.indexOf(argSeparator) + 1));
                 println("Skip file count: " + skip);
+            } else if (arg.startsWith("-fileconcurrency")) {
+                try {
+                    fileConcurrency = Integer.parseInt(arg.substring(arg.indexOf(argSeparator) + 1));
+                    if (fileConcurrency < 1) {
+                        fileConcurrency = 1;
+                    }
+                    println("Will upload up to " + fileConcurrency + " files concurrently");
+                } catch (NumberFormatException nfe) {
+                    println("Unable to parse file concurrency, using default (1)");
+                }
+            } else if (arg.startsWith("-checksumcache")) {
+                String cacheFile = arg.substring(arg.indexOf(argSeparator) + 1);
+                try {
+                    FileResource.setChecksumCache(new ChecksumCache(new File(cacheFile)));
+                    println("Using checksum cache: " + cacheFile);
+                } catch (IOException e) {
+                    println("Unable to open checksum cache " + cacheFile + " : " + e.getMessage() + " - checksums will not be cached");
+                }
             } else if (arg.startsWith("-ex")) {
                 excluded.add(arg.substring(arg.indexOf(argSeparator) + 1));
                 println("Excluding pattern: " + arg.substring(arg.indexOf(argSeparator) + 1));
@@ -175,6 +212,14 @@ public abstract class AbstractUploader {
         if (skip > 0) {
             println("WILL SKIP " + skip + " FILES");
         }
+        if (fileConcurrency > 1) {
+            if (supportsConcurrentUploads()) {
+                fileExecutor = new BlockingExecutor("file-upload", fileConcurrency, fileConcurrency);
+            } else {
+                println("Concurrent file uploads are not supported by this uploader - uploading one file at a time");
+                fileConcurrency = 1;
+            }
+        }
         try {
             if (importRO) {
                 if(bagLocation != null) {
@@ -184,6 +229,9 @@ public abstract class AbstractUploader {
                     importRO(oremapURL);
                 }
             } else {
+                if (merge) {
+                    planRequests(skip, max);
+                }
                 //Gather files named individually
                 ListResource topLevel = new ListResource("Individual files on command line");
                 
@@ -221,14 +269,14 @@ public abstract class AbstractUploader {
 
                         } else {
 
-                            if ((globalFileCount >= skip) && (globalFileCount < (max + skip))) {
+                            if ((globalFileCount.get() >= skip) && (globalFileCount.get() < (max + skip))) {
                                 String newUri = uploadDatafile(file, null, tagId);
                                 if (newUri != null) {
                                     println("              UPLOADED as: " + newUri);
                                     topLevel.addResource(file);
-                                    globalFileCount++;
-                                    totalBytes += file.length();
-                                    println("CURRENT TOTAL: " + globalFileCount + " files :" + totalBytes + " bytes");
+                                    long count = globalFileCount.incrementAndGet();
+                                    long bytes = totalBytes.addAndGet(file.length());
+                                    println("CURRENT TOTAL: " + count + " files :" + bytes + " bytes");
                                 } else if ((tagId == null) && (!listonly)) {
                                     println("Not uploaded due to error during processing: " + file.getPath());
                                 }
@@ -243,6 +291,11 @@ public abstract class AbstractUploader {
                     postProcessChildren(topLevel);
                 }
             }
+            finishRequests();
+            if (fileExecutor != null) {
+                fileExecutor.shutdown();
+                fileExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            }
             if (pw != null) {
                 pw.flush();
                 pw.close();
@@ -289,10 +342,19 @@ System.out.println("tagId: " + tagId);
     public abstract void addDatasetMetadata(String newSubject, String type, JSONObject relationships);
 
     protected boolean excluded(String name) {
+        if (isExcluded(name)) {
+            println("Excluding: " + name);
+            return true;
+        }
+        return false;
+    }
 
+    /**
+     * Same as excluded(), without reporting the exclusion
+     */
+    protected boolean isExcluded(String name) {
         for (String s : excluded) {
             if (name.matches(s)) {
-                println("Excluding: " + name);
                 return true;
             }
         }
@@ -318,13 +380,23 @@ System.out.println("tagId: " + tagId);
 
         boolean created = false;
         String oldCollectionId = collectionId;
+        Iterator<Resource> children = null;
+        // File uploads for this directory that haven't been collected yet, in the order they were started
+        ArrayDeque<Future<String>> pendingUploads = new ArrayDeque<Future<String>>();
+        ArrayDeque<Resource> pendingFiles = new ArrayDeque<Resource>();
+        // Directory listings aren't kept, so post-processing gets just the files that were uploaded
+        ListResource uploaded = new ListResource(dir.getAbsolutePath());
+        boolean childrenProcessed = false;
+        IOException failure = null;
         try {
             collectionId = preprocessCollection(dir, path, parentId, oldCollectionId);
             if ((collectionId != null) && (!collectionId.equals(oldCollectionId))) {
                 created = true;
             }
 
-            for (Resource file : dir.listResources()) {
+            children = dir.listResources().iterator();
+            while (children.hasNext()) {
+                Resource file = children.next();
 
                 if (excluded(file.getName())) {
                     continue;
@@ -338,10 +410,10 @@ System.out.println("tagId: " + tagId);
                 }
                 /*
                  * Stop processing new items when we hit the limit, but finish writing/adding
-                 * children to the current collection.
+                 * children to the current collection. Files still being uploaded count against the limit.
                  */
 
-                if (globalFileCount < (max + skip)) {
+                if ((globalFileCount.get() + pendingFileCount.get()) < (max + skip)) {
 
                     /*
                      * If existingUri != null, recursive calls will check children only (and
@@ -355,20 +427,13 @@ System.out.println("tagId: " + tagId);
                             println("FINALIZING(D): " + file.getPath() + " CREATED as: " + newUri);
                         }
                     } else {
-                        if (globalFileCount >= skip) {
-                            // fileStats[1] += file.length();
-                            newUri = uploadDatafile(file, path, existingUri);
-
-                            // At this point, For 1.x, dataset is added but not
-                            // linked to parent, for 2.0 file is in dataset, but not
-                            // in a subfolder
-                            postProcessDatafile(newUri, existingUri, collectionId, file, dir);
-
-                            if ((existingUri == null) && (newUri != null)) {
-                                globalFileCount++;
-                                totalBytes += file.length();
-                                println("               UPLOADED as: " + newUri);
-                                println("CURRENT TOTAL: " + globalFileCount + " files :" + totalBytes + " bytes");
+                        if (globalFileCount.get() >= skip) {
+                            Future<String> upload = submitDatafile(file, path, existingUri, collectionId, dir);
+                            pendingUploads.add(upload);
+                            pendingFiles.add(file);
+                            // Collect finished uploads as we go (reporting errors right away)
+                            while (!pendingUploads.isEmpty() && pendingUploads.peek().isDone()) {
+                                collectDatafile(pendingUploads.poll(), pendingFiles.poll(), uploaded);
                             }
                         } else {
                             println("SKIPPING(F):  " + file.getPath());
@@ -382,9 +447,14 @@ System.out.println("tagId: " + tagId);
                 postProcessChild(dir, path, parentId, collectionId);
 
             }
+            // All files in this directory must be uploaded before the directory can be post-processed.
+            while (!pendingUploads.isEmpty()) {
+                collectDatafile(pendingUploads.poll(), pendingFiles.poll(), uploaded);
+            }
+            childrenProcessed = true;
             if (!listonly) { // We're potentially making changes
                 postProcessCollection();
-                postProcessChildren(dir);
+                postProcessChildren(uploaded);
                 if ((collectionId != null) && importRO) {
                     String id = findGeneralizationOf(((PublishedResource) dir).getIdentifier());
 
@@ -398,18 +468,159 @@ System.out.println("tagId: " + tagId);
                 collectionId = null; // listonly - report no changes
             }
         } catch (IOException io) {
-            println("error: " + io.getMessage());// One or more files not
-            // uploaded correctly - stop
-            // processing...
+            // One or more files not uploaded correctly - stop processing
+            // (reported once the uploads already started are dealt with)
+            failure = io;
         } catch (UploaderException e) {
             //Collection preprocessor threw an exception to avoid processing this collection - just send the message and continue
             println(e.getMessage());
+        } finally {
+            if (!childrenProcessed) {
+                // Stopped early - wait for the uploads still running and post-process the files that made it,
+                // so that (e.g.) files already sent to storage still get registered
+                while (!pendingUploads.isEmpty()) {
+                    Resource file = pendingFiles.poll();
+                    try {
+                        collectDatafile(pendingUploads.poll(), file, uploaded);
+                    } catch (IOException | RuntimeException e) {
+                        println("error: " + file.getPath() + " : " + e.getMessage());
+                    }
+                }
+                if (!listonly && uploaded.iterator().hasNext()) {
+                    postProcessChildren(uploaded);
+                }
+            }
+            // The listing may not have been read to the end
+            Resource.closeListing(children);
+        }
+        if (failure != null) {
+            println("error: " + failure.getMessage());
         }
         return collectionId;
     }
 
+    /**
+     * Start the upload of a single file. With -fileconcurrency > 1, the upload
+     * runs on the fileExecutor and this call returns once the file has been
+     * queued (blocking if the queue is full). Otherwise the file is uploaded on
+     * the calling thread and a completed Future is returned.
+     *
+     * @return a Future for the new id of the file (null if nothing was created)
+     */
+    protected Future<String> submitDatafile(final Resource file, final String path, final String existingUri,
+            final String collectionId, final Resource dir) {
+        pendingFileCount.incrementAndGet();
+        CompletableFuture<String> upload;
+        try {
+            upload = startDatafileUpload(file, path, existingUri);
+        } catch (RuntimeException e) {
+            upload = new CompletableFuture<String>();
+            upload.completeExceptionally(e);
+        }
+        return upload.thenApply(newUri -> {
+            try {
+                return completeDatafile(newUri, existingUri, collectionId, file, dir);
+            } catch (IOException io) {
+                throw new CompletionException(io);
+            }
+        }).whenComplete((newUri, t) -> pendingFileCount.decrementAndGet());
+    }
+
+    /**
+     * Start sending a file to the repository. The default runs
+     * uploadDatafile(file, path, existingUri) on the fileExecutor, or on the
+     * calling thread if there isn't one. Uploaders with their own way of
+     * scheduling uploads can override this.
+     *
+     * @return a Future for the new id of the file (null if nothing was created)
+     */
+    protected CompletableFuture<String> startDatafileUpload(final Resource file, final String path,
+            final String existingUri) {
+        if (fileExecutor == null) {
+            return CompletableFuture.completedFuture(uploadDatafile(file, path, existingUri));
+        }
+        return CompletableFuture.supplyAsync(() -> uploadDatafile(file, path, existingUri), fileExecutor);
+    }
+
+    private String completeDatafile(String newUri, String existingUri, String collectionId, Resource file,
+            Resource dir) throws IOException {
+        // At this point, For 1.x, dataset is added but not
+        // linked to parent, for 2.0 file is in dataset, but not
+        // in a subfolder
+        postProcessDatafile(newUri, existingUri, collectionId, file, dir);
+
+        if (newUri != null) {
+            long count = globalFileCount.incrementAndGet();
+            long bytes = totalBytes.addAndGet(file.length());
+            if (existingUri == null) {
+                println("               UPLOADED as: " + newUri);
+            } else {
+                println("               REPLACED with: " + newUri);
+            }
+            println("CURRENT TOTAL: " + count + " files :" + bytes + " bytes");
+        }
+        return newUri;
+    }
+
+    /**
+     * Wait for an upload started by submitDatafile, rethrowing any IOException
+     * it failed with.
+     */
+    protected String awaitDatafile(Future<String> upload) throws IOException {
+        try {
+            return upload.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for file uploads to complete");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void collectDatafile(Future<String> upload, Resource file, ListResource uploaded) throws IOException {
+        if (awaitDatafile(upload) != null) {
+            uploaded.addResource(file);
+        }
+    }
+
+    /**
+     * Uploaders that can safely run uploadDatafile() and postProcessDatafile()
+     * on several threads at once should override this to return true.
+     */
+    protected boolean supportsConcurrentUploads() {
+        return false;
+    }
+
     protected abstract void postProcessChildren(Resource dir);
 
+    /**
+     * Called before any of the files or directories named on the command line
+     * are processed (when merging with existing content), so that an uploader
+     * can work out what the run will do up front.
+     *
+     * @param skip - the number of files that will be skipped (-skip)
+     * @param max - the most files that will be sent (-limit)
+     */
+    protected void planRequests(long skip, long max) {
+    }
+
+    /**
+     * Called once all requests have been processed, while the log is still
+     * open, for any work that postProcessChildren() or postProcessCollection()
+     * left pending.
+     */
+    protected void finishRequests() {
+    }
+
     protected abstract void postProcessCollection();
 
     protected abstract String preprocessCollection(Resource dir, String path, String parentId, String collectionId) throws UploaderException;
@@ -421,23 +632,7 @@ System.out.println("tagId: " + tagId);
 
     public String uploadDatafile(Resource file, String path, String dataId) {
         long startTime = System.currentTimeMillis();
-        println("\nPROCESSING(F): " + file.getPath());
-        if (path != null) {
-            path += "/" + file.getName();
-        } else {
-            path = "/" + file.getName();
-        }
-
-        if (dataId != null) {
-            println("              Found as: " + dataId);
-        } else {
-            if (verify) {
-                if (hashIssues.containsKey(path)) {
-                    println("               " + hashIssues.get(path));
-                }
-            }
-            println("               Does not yet exist on server.");
-        }
+        path = reportDatafile(file, path, dataId);
 
         boolean created = false;
         if (!listonly) {
@@ -451,13 +646,21 @@ System.out.println("tagId: " + tagId);
                     created = true;
                 }
             } else {
-                // FixMe - if dataId exists, we could check sha1 and upload a
-                // version if file changes
+                // It exists - upload a new version if it has changed
+                try {
+                    String newId = replaceDatafile(file, path, dataId);
+                    if (newId != null) {
+                        dataId = newId;
+                        created = true;
+                    }
+                } catch (UploaderException ue) {
+                    println(ue.getMessage());
+                }
             }
         } else {
             // Increment count if we would have uploaded (dataId==null)
             if (dataId == null) {
-                globalFileCount++;
+                globalFileCount.incrementAndGet();
             }
         }
         if ((dataId != null) && importRO) {
@@ -487,10 +690,46 @@ System.out.println("tagId: " + tagId);
         return dataId;
     }
 
+    /**
+     * Report the file being processed and whether it already exists.
+     *
+     * @return the path of the file including its name
+     */
+    protected String reportDatafile(Resource file, String path, String dataId) {
+        println("\nPROCESSING(F): " + file.getPath());
+        if (path != null) {
+            path += "/" + file.getName();
+        } else {
+            path = "/" + file.getName();
+        }
+
+        if (dataId != null) {
+            println("              Found as: " + dataId);
+        } else {
+            if (verify) {
+                if (hashIssues.containsKey(path)) {
+                    println("               " + hashIssues.get(path));
+                }
+            }
+            println("               Does not yet exist on server.");
+        }
+        return path;
+    }
+
     protected abstract HttpClientContext reauthenticate(long startTime);
 
     protected abstract String uploadDatafile(Resource file, String path) throws UploaderException;
 
+    /**
+     * Upload a new version of a file that already exists in the repository as
+     * existingUri, if it has changed. The default does nothing.
+     *
+     * @return the new id of the file, or null if it wasn't replaced
+     */
+    protected String replaceDatafile(Resource file, String path, String existingUri) throws UploaderException {
+        return null;
+    }
+
     public String itemExists(String path, Resource item) {
         //Default is to report the item as not found
         return null;
@@ -0,0 +1,96 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * An HttpClient that sends each request through an AdaptiveLimiter: one for
+ * calls to the Dataverse server and one for everything else (i.e. transfers to
+ * storage). A request counts as in flight until its response arrives, so
+ * response bodies that are read later (or never closed) don't hold on to it.
+ *
+ * @author Jim
+ */
+public class AdaptiveHttpClient extends CloseableHttpClient {
+
+    private final CloseableHttpClient client;
+    private final String serverHost;
+    private final AdaptiveLimiter apiLimiter;
+    private final AdaptiveLimiter storageLimiter;
+
+    public AdaptiveHttpClient(CloseableHttpClient client, String serverHost, AdaptiveLimiter apiLimiter, AdaptiveLimiter storageLimiter) {
+        this.client = client;
+        this.serverHost = serverHost;
+        this.apiLimiter = apiLimiter;
+        this.storageLimiter = storageLimiter;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException {
+        AdaptiveLimiter limiter = ((target != null) && serverHost.equalsIgnoreCase(target.getHostName())) ? apiLimiter : storageLimiter;
+        long ticket;
+        try {
+            ticket = limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        }
+        long bytes = 0;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if ((entity != null) && (entity.getContentLength() > 0)) {
+                bytes = entity.getContentLength();
+            }
+        }
+        long start = System.nanoTime();
+        boolean overloaded = true;
+        try {
+            CloseableHttpResponse response = client.execute(target, request, context);
+            int status = response.getStatusLine().getStatusCode();
+            overloaded = (status >= 500) || (status == 429) || (status == 408);
+            return response;
+        } finally {
+            limiter.release(ticket, System.nanoTime() - start, bytes, overloaded);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public org.apache.http.params.HttpParams getParams() {
+        return client.getParams();
+    }
+
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+        return client.getConnectionManager();
+    }
+}
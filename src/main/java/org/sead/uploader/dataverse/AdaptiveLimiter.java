@@ -0,0 +1,190 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.util.Arrays;
+import static org.sead.uploader.AbstractUploader.println;
+
+/**
+ * Limits the number of requests of one kind in flight, adjusting the limit
+ * as it goes (additive increase, multiplicative decrease):
+ *
+ * - Requests are looked at in windows of as many requests as the limit. If a
+ * window's throughput (bytes, or requests, per second) is about as good as
+ * the last one's or better, and its latency is close to the lowest seen, the
+ * limit goes up by one. In between, the limit stays where it is.
+ *
+ * - An overloaded response (5xx, 429, 408, or no response at all, e.g. a
+ * timeout) or a window whose latency has risen well above the lowest seen
+ * cuts the limit by a quarter. After a cut, the requests already in flight
+ * (sent at the old limit) can't cut it again.
+ *
+ * Latency is compared with the lowest seen for requests of about the same
+ * size (bodies within a factor of 4), so a mix of small and large requests
+ * isn't mistaken for overload. The lowest values creep up a little with each
+ * window, so one unusually fast spell doesn't count against the rest of the
+ * run.
+ *
+ * @author Jim
+ */
+public class AdaptiveLimiter {
+
+    // Latency up to this times the lowest seen counts as flat
+    private static final double LATENCY_FLAT = 1.25;
+    // Latency more than this times the lowest seen counts as rising
+    private static final double LATENCY_RISING = 2.0;
+    // Allowance for noise when comparing throughput
+    private static final double THROUGHPUT_FLAT = 0.95;
+    private static final double DECREASE = 0.75;
+    // How much the lowest latencies are allowed to rise each window
+    private static final double BASELINE_DRIFT = 1.05;
+    // Requests without a body, then bodies by powers of 4 (the last for anything over 256 MB)
+    private static final int SIZE_CLASSES = 12;
+
+    private final String name;
+    private final int min;
+    private final int max;
+
+    private int limit;
+    private int inFlight = 0;
+
+    // The current window
+    private long windowStart = System.nanoTime();
+    private int windowCount = 0;
+    private long windowLatency = 0;
+    private long windowBytes = 0;
+    // The sum of each request's latency relative to the lowest seen for its size
+    private double windowRatio = 0;
+    private double lastThroughput = 0;
+    private final double[] minLatency = new double[SIZE_CLASSES];
+    // Requests started before the last cut, which can't cut the limit again
+    private long started = 0;
+    private long cutAt = 0;
+
+    public AdaptiveLimiter(String name, int initial, int min, int max) {
+        this.name = name;
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.limit = Math.min(this.max, Math.max(this.min, initial));
+        Arrays.fill(minLatency, Double.MAX_VALUE);
+        println(name + " concurrency: starting at " + limit + " (between " + this.min + " and " + this.max + ")");
+    }
+
+    /**
+     * Wait until another request can be sent.
+     *
+     * @return a ticket to pass to release()
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+        return ++started;
+    }
+
+    /**
+     * Report how a request went.
+     *
+     * @param ticket - from acquire()
+     * @param latencyNanos - the time until the response (or failure)
+     * @param bytes - the bytes sent
+     * @param overloaded - whether the response (or lack of one) shows the
+     * other end is overloaded
+     */
+    public synchronized void release(long ticket, long latencyNanos, long bytes, boolean overloaded) {
+        inFlight--;
+        if (overloaded) {
+            if (ticket > cutAt) {
+                cut("overloaded");
+            }
+        } else {
+            int size = sizeClass(bytes);
+            double latency = Math.max(1, latencyNanos);
+            minLatency[size] = Math.min(minLatency[size], latency);
+            windowCount++;
+            windowLatency += latencyNanos;
+            windowBytes += bytes;
+            windowRatio += latency / minLatency[size];
+            if (windowCount >= limit) {
+                endWindow();
+            }
+        }
+        notifyAll();
+    }
+
+    private void endWindow() {
+        long now = System.nanoTime();
+        double latency = (double) windowLatency / windowCount;
+        double ratio = windowRatio / windowCount;
+        double seconds = Math.max(1, now - windowStart) / 1e9;
+        // Bytes per second when sending data, otherwise requests per second
+        double throughput = ((windowBytes > 0) ? windowBytes : windowCount) / seconds;
+        if (ratio > LATENCY_RISING) {
+            if (started > cutAt) {
+                cut("latency rising");
+            }
+        } else if ((ratio <= LATENCY_FLAT) && (throughput >= THROUGHPUT_FLAT * lastThroughput) && (limit < max)) {
+            limit++;
+            println(name + " concurrency: " + limit + " (" + describe(throughput, latency, ratio) + ")");
+        }
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            if (minLatency[i] != Double.MAX_VALUE) {
+                minLatency[i] *= BASELINE_DRIFT;
+            }
+        }
+        lastThroughput = throughput;
+        windowStart = now;
+        windowCount = 0;
+        windowLatency = 0;
+        windowBytes = 0;
+        windowRatio = 0;
+    }
+
+    private static int sizeClass(long bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        int log4 = (63 - Long.numberOfLeadingZeros(bytes)) / 2;
+        // Bodies under 1 KB share the first class
+        return 1 + Math.min(SIZE_CLASSES - 2, Math.max(0, log4 - 4));
+    }
+
+    private void cut(String reason) {
+        int newLimit = Math.max(min, (int) (limit * DECREASE));
+        cutAt = started;
+        // Start measuring again at the new limit
+        windowStart = System.nanoTime();
+        windowCount = 0;
+        windowLatency = 0;
+        windowBytes = 0;
+        windowRatio = 0;
+        lastThroughput = 0;
+        if (newLimit != limit) {
+            limit = newLimit;
+            println(name + " concurrency: " + limit + " (" + reason + ")");
+        }
+    }
+
+    private String describe(double throughput, double latency, double ratio) {
+        String rate = (windowBytes > 0)
+                ? String.format("%.1f MB/s", throughput / (1024 * 1024))
+                : String.format("%.1f requests/s", throughput);
+        return rate + ", " + Math.round(latency / 1e6) + String.format(" ms, %.2fx the lowest", ratio);
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,487 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClients;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.sead.uploader.AbstractUploader.println;
+
+/**
+ * A cache, in a local directory, of what DVUploader reads from Dataverse at
+ * the start of each run, so that frequent runs against large datasets don't
+ * have to download it all again:
+ *
+ * - an HTTP cache for read-only API calls, kept across runs, so responses the
+ * server sends an ETag or Last-Modified date for are revalidated with
+ * conditional requests rather than downloaded again
+ *
+ * - a snapshot of the dataset's file listing, tagged with the version it was
+ * read from (its id, state and last update time). If the version hasn't been
+ * updated since, the snapshot is used instead of listing the files. Files
+ * this uploader registers are added to the snapshot, so a run's own uploads
+ * don't make the next run list the dataset again.
+ *
+ * - the server's fixity algorithm, which is rechecked once a day.
+ *
+ * @author Jim
+ */
+public class ApiCache {
+
+    private static final long SETTINGS_TTL = 24 * 60 * 60 * 1000l;
+    private static final long MAX_CACHED_RESPONSE = 2l * 1024 * 1024 * 1024;
+    // Leftover files younger than this may still be in use by another run
+    private static final long SWEEP_AGE = 60 * 60 * 1000l;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final File dir;
+    private final String server;
+
+    public ApiCache(File dir, String server) throws IOException {
+        this.dir = dir;
+        this.server = server;
+        Files.createDirectories(new File(dir, "http").toPath());
+        Files.createDirectories(new File(dir, "bodies").toPath());
+        sweep();
+    }
+
+    /**
+     * Remove response bodies no cache entry refers to (e.g. from a run that
+     * stopped before storing the entry) and temporary files left by
+     * interrupted writes.
+     */
+    private void sweep() {
+        long cutoff = System.currentTimeMillis() - SWEEP_AGE;
+        Set<String> referenced = new HashSet<String>();
+        File[] entries = new File(dir, "http").listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File f : entries) {
+            if (f.getName().contains(".tmp")) {
+                if (f.lastModified() < cutoff) {
+                    f.delete();
+                }
+                continue;
+            }
+            try {
+                String body = new JSONObject(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8)).optString("body", null);
+                if (body != null) {
+                    referenced.add(body);
+                }
+            } catch (IOException | JSONException e) {
+                // Left for getEntry() to deal with - its body, if any, becomes an orphan
+            }
+        }
+        int removed = 0;
+        File[] bodies = new File(dir, "bodies").listFiles();
+        if (bodies != null) {
+            for (File f : bodies) {
+                if (!referenced.contains(f.getName()) && (f.lastModified() < cutoff) && f.delete()) {
+                    removed++;
+                }
+            }
+        }
+        File[] others = dir.listFiles((d, name) -> name.contains(".tmp"));
+        if (others != null) {
+            for (File f : others) {
+                if (f.lastModified() < cutoff) {
+                    f.delete();
+                }
+            }
+        }
+        if (removed > 0) {
+            println("Removed " + removed + " unused response bodies from the cache");
+        }
+    }
+
+    /**
+     * @return a client, sharing the given connections, that caches responses
+     * in this cache's directory
+     */
+    public CloseableHttpClient getCachingClient(HttpClientConnectionManager cm, RequestConfig config) {
+        CacheConfig cacheConfig = CacheConfig.custom()
+                .setMaxObjectSize(MAX_CACHED_RESPONSE)
+                // Responses include restricted information and are only for this user
+                .setSharedCache(false)
+                .build();
+        return CachingHttpClients.custom()
+                .setCacheConfig(cacheConfig)
+                .setResourceFactory(new BodyFileFactory(new File(dir, "bodies")))
+                .setHttpCacheStorage(new FileCacheStorage(new File(dir, "http"), new File(dir, "bodies")))
+                .setDeleteCache(false)
+                .setConnectionManager(cm)
+                .setConnectionManagerShared(true)
+                .setDefaultRequestConfig(config)
+                .build();
+    }
+
+    /**
+     * @return the fixity algorithm recorded for this server in the last day,
+     * or null if there isn't one
+     */
+    public String getFixityAlgorithm() {
+        File f = getFile("settings", server, ".json");
+        if (!f.exists() || (System.currentTimeMillis() - f.lastModified() > SETTINGS_TTL)) {
+            return null;
+        }
+        try {
+            return new JSONObject(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8)).optString("fixityAlgorithm", null);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void putFixityAlgorithm(String algorithm) {
+        JSONObject settings = new JSONObject();
+        settings.put("server", server);
+        settings.put("fixityAlgorithm", algorithm);
+        try {
+            replace(getFile("settings", server, ".json"), out -> out.write(settings.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            println("Unable to cache the fixity algorithm: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the files in the snapshot of this dataset's listing, if it was
+     * taken from this version, otherwise null
+     */
+    public ExistingFileIndex getListing(String datasetPID, String versionKey) {
+        File f = getFile("listing", server + datasetPID, ".json.gz");
+        if (!f.exists()) {
+            return null;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(new GZIPInputStream(new BufferedInputStream(new FileInputStream(f))))) {
+            ExistingFileIndex index = new ExistingFileIndex();
+            String version = null;
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if ("version".equals(field)) {
+                    version = parser.getValueAsString();
+                    if (!versionKey.equals(version)) {
+                        return null;
+                    }
+                } else if ("files".equals(field) && (token == JsonToken.START_ARRAY)) {
+                    while (parser.nextToken() == JsonToken.START_ARRAY) {
+                        String[] values = new String[4];
+                        for (int i = 0; i < 4; i++) {
+                            parser.nextToken();
+                            values[i] = parser.getValueAsString();
+                        }
+                        // Snapshots taken by earlier versions don't have the file ids
+                        long id = 0;
+                        if (parser.nextToken() != JsonToken.END_ARRAY) {
+                            id = parser.getValueAsLong();
+                            parser.nextToken();
+                        }
+                        index.put(values[0], values[1], values[2], values[3], id);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return versionKey.equals(version) ? index : null;
+        } catch (IOException | RuntimeException e) {
+            println("Unable to read the cached dataset listing: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save a snapshot of the dataset's listing, taken from the given version.
+     */
+    public void putListing(String datasetPID, String versionKey, ExistingFileIndex index) {
+        try {
+            replace(getFile("listing", server + datasetPID, ".json.gz"), out -> {
+                try (JsonGenerator gen = JSON_FACTORY.createGenerator(new GZIPOutputStream(out))) {
+                    gen.writeStartObject();
+                    gen.writeStringField("dataset", datasetPID);
+                    gen.writeStringField("version", versionKey);
+                    gen.writeArrayFieldStart("files");
+                    index.forEach((dirLabel, name, type, value, id) -> {
+                        gen.writeStartArray();
+                        gen.writeString(dirLabel);
+                        gen.writeString(name);
+                        gen.writeString(type);
+                        gen.writeString(value);
+                        gen.writeNumber(id);
+                        gen.writeEndArray();
+                    });
+                    gen.writeEndArray();
+                    gen.writeEndObject();
+                }
+            });
+        } catch (IOException e) {
+            println("Unable to cache the dataset listing: " + e.getMessage());
+        }
+    }
+
+    private File getFile(String prefix, String key, String suffix) {
+        return new File(dir, prefix + "-" + DigestUtils.sha1Hex(key) + suffix);
+    }
+
+    private interface Content {
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Write a file via a temporary file, so a run that is interrupted, or one
+     * reading the file at the same time, never sees part of it.
+     */
+    private static void replace(File f, Content content) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp" + Thread.currentThread().getId());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            content.writeTo(out);
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A cached response body, in a file in the cache directory.
+     */
+    private static class BodyFile implements Resource {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+        // Whether the file can go once it has been opened (see BodyFileFactory)
+        private final boolean partial;
+
+        BodyFile(File file) {
+            this(file, false);
+        }
+
+        BodyFile(File file, boolean partial) {
+            this.file = file;
+            this.partial = partial;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            InputStream in = new FileInputStream(file);
+            if (partial) {
+                // Still readable through the open stream, except on file systems that don't allow
+                // deleting open files - there dispose() (or the sweep at startup) removes it
+                file.delete();
+            }
+            return in;
+        }
+
+        @Override
+        public long length() {
+            return file.length();
+        }
+
+        @Override
+        public void dispose() {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes response bodies that are being cached to files.
+     */
+    private static class BodyFileFactory implements ResourceFactory {
+
+        private final File dir;
+
+        BodyFileFactory(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public Resource generate(String requestId, InputStream in, InputLimit limit) throws IOException {
+            File f = new File(dir, UUID.randomUUID().toString());
+            boolean written = false;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f))) {
+                long total = 0;
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    total += n;
+                    if ((limit != null) && (total > limit.getValue())) {
+                        limit.reached();
+                        break;
+                    }
+                }
+                written = true;
+            } finally {
+                if (!written) {
+                    // Failed part way - nothing will refer to it
+                    f.delete();
+                }
+            }
+            // A body over the limit isn't cached - the client only reads it back once, to pass on the
+            // start of the response, so it is removed as soon as that starts
+            return new BodyFile(f, (limit != null) && limit.isReached());
+        }
+
+        @Override
+        public Resource copy(String requestId, Resource resource) throws IOException {
+            try (InputStream in = resource.getInputStream()) {
+                return generate(requestId, in, null);
+            }
+        }
+    }
+
+    /**
+     * Keeps HTTP cache entries in files, as JSON, so they last from one run to
+     * the next. The response bodies are in separate files (from
+     * BodyFileFactory).
+     */
+    private static class FileCacheStorage implements HttpCacheStorage {
+
+        private final File dir;
+        private final File bodyDir;
+
+        FileCacheStorage(File dir, File bodyDir) {
+            this.dir = dir;
+            this.bodyDir = bodyDir;
+        }
+
+        private File getFile(String key) {
+            return new File(dir, DigestUtils.sha1Hex(key));
+        }
+
+        @Override
+        public synchronized void putEntry(String key, HttpCacheEntry entry) throws IOException {
+            JSONObject json = new JSONObject();
+            json.put("requestDate", entry.getRequestDate().getTime());
+            json.put("responseDate", entry.getResponseDate().getTime());
+            ProtocolVersion protocol = entry.getProtocolVersion();
+            json.put("protocol", new JSONArray().put(protocol.getProtocol()).put(protocol.getMajor()).put(protocol.getMinor()));
+            json.put("status", entry.getStatusCode());
+            json.put("reason", entry.getReasonPhrase());
+            JSONArray headers = new JSONArray();
+            for (Header h : entry.getAllHeaders()) {
+                headers.put(new JSONArray().put(h.getName()).put(h.getValue()));
+            }
+            json.put("headers", headers);
+            if (entry.getResource() instanceof BodyFile) {
+                json.put("body", ((BodyFile) entry.getResource()).file.getName());
+            }
+            json.put("variants", entry.getVariantMap());
+            json.put("method", entry.getRequestMethod());
+            // Revalidating an entry copies its body, so the old copy is no longer needed
+            HttpCacheEntry old = getEntry(key);
+            replace(getFile(key), out -> out.write(json.toString().getBytes(StandardCharsets.UTF_8)));
+            if ((old != null) && (old.getResource() instanceof BodyFile)
+                    && !((BodyFile) old.getResource()).file.getName().equals(json.optString("body"))) {
+                old.getResource().dispose();
+            }
+        }
+
+        @Override
+        public synchronized HttpCacheEntry getEntry(String key) throws IOException {
+            File f = getFile(key);
+            if (!f.exists()) {
+                return null;
+            }
+            try {
+                JSONObject json = new JSONObject(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+                JSONArray protocol = json.getJSONArray("protocol");
+                StatusLine status = new BasicStatusLine(
+                        new ProtocolVersion(protocol.getString(0), protocol.getInt(1), protocol.getInt(2)),
+                        json.getInt("status"), json.optString("reason", null));
+                JSONArray headerArray = json.getJSONArray("headers");
+                Header[] headers = new Header[headerArray.length()];
+                for (int i = 0; i < headers.length; i++) {
+                    headers[i] = new BasicHeader(headerArray.getJSONArray(i).getString(0), headerArray.getJSONArray(i).getString(1));
+                }
+                Resource body = null;
+                if (json.has("body")) {
+                    File bodyFile = new File(bodyDir, json.getString("body"));
+                    if (!bodyFile.exists()) {
+                        // The body has been removed from the cache directory
+                        Files.deleteIfExists(f.toPath());
+                        return null;
+                    }
+                    body = new BodyFile(bodyFile);
+                }
+                Map<String, String> variants = new HashMap<String, String>();
+                JSONObject variantMap = json.getJSONObject("variants");
+                for (String variant : variantMap.keySet()) {
+                    variants.put(variant, variantMap.getString(variant));
+                }
+                return new HttpCacheEntry(new Date(json.getLong("requestDate")), new Date(json.getLong("responseDate")),
+                        status, headers, body, variants, json.optString("method", "GET"));
+            } catch (JSONException e) {
+                // Unreadable, e.g. cut short by a crash
+                Files.deleteIfExists(f.toPath());
+                return null;
+            }
+        }
+
+        @Override
+        public synchronized void removeEntry(String key) throws IOException {
+            HttpCacheEntry entry = getEntry(key);
+            if ((entry != null) && (entry.getResource() != null)) {
+                entry.getResource().dispose();
+            }
+            Files.deleteIfExists(getFile(key).toPath());
+        }
+
+        @Override
+        public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+            putEntry(key, callback.update(getEntry(key)));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.TreeMap;
+import static org.sead.uploader.AbstractUploader.println;
+
+/**
+ * Limits the rate at which all uploads together send data, with a token
+ * bucket holding up to a second's worth of bytes.
+ *
+ * The rate is given in MB/s, either as one number or as a daily schedule of
+ * the times each rate starts, e.g. "08:00=20,18:00=200" (20 MB/s from 8am, 200
+ * MB/s from 6pm until 8am). A rate of 0 means no limit. The rate can also be
+ * read from a file ("@file"), which is checked for changes every few seconds,
+ * so the limit can be changed without restarting the upload.
+ *
+ * @author Jim
+ */
+public class BandwidthLimiter {
+
+    private static final long RELOAD_INTERVAL = 5000;
+    private static final long MB = 1024 * 1024;
+    // The most that should be asked for at once
+    static final int MAX_CHUNK = 64 * 1024;
+
+    private final File specFile;
+    private long specModified = 0;
+    private long lastCheck = 0;
+
+    // Rate (bytes/s) by the minute of the day it starts at
+    private TreeMap<Integer, Double> schedule;
+    private double rate = -1;
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param spec - a rate, a schedule, or "@" and the name of a file holding
+     * one
+     * @throws IllegalArgumentException - if the rate or schedule can't be
+     * read
+     */
+    public BandwidthLimiter(String spec) {
+        if (spec.startsWith("@")) {
+            specFile = new File(spec.substring(1));
+            schedule = parse(readSpecFile());
+        } else {
+            specFile = null;
+            schedule = parse(spec);
+        }
+        synchronized (this) {
+            updateRate();
+        }
+    }
+
+    /**
+     * Wait until this many bytes can be sent.
+     */
+    public synchronized void acquire(int bytes) throws InterruptedException {
+        while (true) {
+            updateRate();
+            if (rate <= 0) {
+                return;
+            }
+            refill();
+            if (tokens >= bytes) {
+                tokens -= bytes;
+                return;
+            }
+            // Wait for the missing tokens (or a rate change)
+            long waitMs = Math.min(RELOAD_INTERVAL, Math.max(1, (long) Math.ceil((bytes - tokens) * 1000 / rate)));
+            wait(waitMs);
+        }
+    }
+
+    /**
+     * @return the current rate in bytes/s, 0 if there is no limit
+     */
+    public synchronized double getRate() {
+        return Math.max(0, rate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        // A second's worth of bytes at most, so an idle spell doesn't allow a burst
+        tokens = Math.min(Math.max(rate, MAX_CHUNK), tokens + rate * (now - lastRefill) / 1e9);
+        lastRefill = now;
+    }
+
+    private void updateRate() {
+        long now = System.currentTimeMillis();
+        if ((now - lastCheck) < RELOAD_INTERVAL && (rate >= 0)) {
+            return;
+        }
+        lastCheck = now;
+        if ((specFile != null) && (specFile.lastModified() != specModified)) {
+            try {
+                schedule = parse(readSpecFile());
+            } catch (IllegalArgumentException e) {
+                println("Unable to read the bandwidth limit from " + specFile.getPath() + " : " + e.getMessage() + " - keeping the current limit");
+            }
+        }
+        LocalTime time = LocalTime.now();
+        Map.Entry<Integer, Double> current = schedule.floorEntry(time.getHour() * 60 + time.getMinute());
+        if (current == null) {
+            // Before the first start time - the last rate of the day carries on past midnight
+            current = schedule.lastEntry();
+        }
+        double newRate = current.getValue();
+        if (newRate != rate) {
+            if (newRate > 0) {
+                println(String.format("Bandwidth limit: %.1f MB/s", newRate / MB));
+            } else if (rate > 0) {
+                println("Bandwidth limit: none");
+            }
+            rate = newRate;
+            // Start with a full bucket at the new rate
+            tokens = Math.max(0, rate);
+            lastRefill = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    private String readSpecFile() {
+        try {
+            specModified = specFile.lastModified();
+            return new String(Files.readAllBytes(specFile.toPath()), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read " + specFile.getPath() + " : " + e.getMessage());
+        }
+    }
+
+    private static TreeMap<Integer, Double> parse(String spec) {
+        TreeMap<Integer, Double> result = new TreeMap<Integer, Double>();
+        try {
+            if (!spec.contains("=")) {
+                result.put(0, parseRate(spec));
+                return result;
+            }
+            for (String period : spec.split("[,\\s]+")) {
+                if (period.isEmpty()) {
+                    continue;
+                }
+                String[] parts = period.split("=");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Expected <HH:MM>=<MB/s> but found: " + period);
+                }
+                LocalTime start = LocalTime.parse(parts[0].trim().length() == 4 ? "0" + parts[0].trim() : parts[0].trim());
+                result.put(start.getHour() * 60 + start.getMinute(), parseRate(parts[1]));
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Unable to parse bandwidth limit '" + spec + "' : " + e.getMessage());
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("No bandwidth limit given");
+        }
+        return result;
+    }
+
+    // A negative rate would never count as "no limit" and would stop the limit being cached
+    private static double parseRate(String rate) {
+        double mbps = Double.parseDouble(rate.trim());
+        if ((mbps < 0) || Double.isNaN(mbps)) {
+            throw new IllegalArgumentException("Rate must be 0 (no limit) or more: " + rate.trim());
+        }
+        return mbps * MB;
+    }
+}
@@ -15,11 +15,15 @@
  ***************************************************************************** */
 package org.sead.uploader.dataverse;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import jakarta.json.Json;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonWriter;
 import jakarta.json.JsonWriterFactory;
 import jakarta.json.stream.JsonGenerator;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
@@ -34,13 +38,21 @@ import java.security.KeyStoreException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipFile;
@@ -75,10 +87,13 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.sead.uploader.AbstractUploader;
 import static org.sead.uploader.AbstractUploader.println;
 import org.sead.uploader.util.BagResourceFactory;
+import org.sead.uploader.util.BlockingExecutor;
+import org.sead.uploader.util.ChecksumCache;
 import org.sead.uploader.util.FileResource;
 import org.sead.uploader.util.PublishedResource;
 import org.sead.uploader.util.UploaderException;
@@ -107,6 +122,77 @@ public class DVUploader extends AbstractUploader {
 
     private int timeout = 1200;
     private int httpConcurrency = 4;
+    //Limit on the bytes in parts queued or being sent across all multipart uploads
+    private long maxBytesInFlight = 1024 * 1024 * 1024l;
+    private TransferScheduler transferScheduler = null;
+    // The last registration queued by startDirectUpload(), which the next one waits for
+    private CompletableFuture<Void> lastRegistration = CompletableFuture.completedFuture(null);
+    // The thread startDirectUpload() registers files on, so the transfer threads don't wait for Dataverse
+    private ExecutorService registrar = null;
+    //Number of files to request upload URLs for ahead of time (0 = don't)
+    private int prefetchFiles = 0;
+    // With -uploadviaserver, the number of files posted to Dataverse at once, and the threads posting them
+    private int maxPosts = 1;
+    private BlockingExecutor serverUploads = null;
+    // With -uploadviaserver and -bundle, small files are sent in zip archives
+    private int bundleFiles = 0;
+    private long bundleBytes = 100 * 1024 * 1024l;
+    private long bundleFileSize = 1024 * 1024l;
+    private ZipBundler bundler = null;
+    // With -adaptive, the number of requests in flight to storage and to Dataverse adjust between 1 and these
+    private boolean adaptive = false;
+    private int maxStorageConcurrency = 64;
+    private int maxApiConcurrency = 16;
+    private AdaptiveLimiter storageLimiter = null;
+    private AdaptiveLimiter apiLimiter = null;
+    // With -maxrate, the limit on the rate all uploads together send data at
+    private BandwidthLimiter bandwidthLimiter = null;
+    private UploadUrlPrefetcher urlPrefetcher = null;
+    //Thresholds for sending a batch of files to /addFiles
+    private int batchFiles = 1000;
+    private long batchBytes = 2 * 1024 * 1024l;
+    private int batchSeconds = 60;
+    private RegistrationBatcher registrationBatcher = null;
+    private LockMonitor lockMonitor = null;
+    //Most bytes held to re-order part data for the digests of all the multipart uploads in progress
+    private static final long MAX_DIGEST_BUFFER = 64 * 1024 * 1024l;
+    private final AtomicLong digestBufferSpace = new AtomicLong(MAX_DIGEST_BUFFER);
+    //Passes made over the parts of a multipart upload (the later ones only send parts that failed) before it is aborted
+    private static final int PART_UPLOAD_PASSES = 2;
+
+    // Threads for the digest, upload and registration stages of the direct upload pipeline (null when not used)
+    private int[] pipelineThreads = null;
+    private DirectUploadPipeline pipeline = null;
+
+    private String journalFile = null;
+    private UploadJournal journal = null;
+
+    private String cacheDir = null;
+    private ApiCache apiCache = null;
+    // Client for read-only API calls, through the cache when there is one
+    private CloseableHttpClient apiClient = null;
+    // The dataset version the listing came from, and whether files registered since have been added to it
+    private String listingVersion = null;
+    private volatile boolean listingUpdated = false;
+    // The version the dataset is in after this run's registrations, or null once it may also have been
+    // changed by someone else (so the updated listing can't be saved as current), guarded by versionLock
+    private String expectedVersion = null;
+    private int registrationsInFlight = 0;
+    // The number of calls trackDatasetChange() has started, to tell whether another started while the version was fetched
+    private long registrationsStarted = 0;
+    private final Object versionLock = new Object();
+
+    // What this run will do, worked out before any files are sent
+    private SyncPlan plan = null;
+    // Plan the run up front (-plan, -listonly), which means reading every local directory before sending anything
+    private boolean planning = false;
+    private String planFile = null;
+    // Replace files that -verify finds have changed, rather than adding another copy
+    private boolean replaceChanged = false;
+    // Threads comparing local checksums with the dataset's (with -verify) while planning
+    private static final int PLAN_VERIFY_THREADS = 4;
+    // The most checksum checks to start before waiting for them to finish
+    private static final int PLAN_CHECK_BATCH = 1000;
 
     //private static long mpSizeLimit = 5 * 1024 * 1024;
     private RequestConfig config = RequestConfig.custom()
@@ -166,7 +252,23 @@ public class DVUploader extends AbstractUploader {
         println("      -listonly           - Scan the Dataset and local files and list what would be uploaded (does not upload with this flag)");
         println("      -limit=<n>          - Specify a maximum number of files to upload per invocation.");
         println("      -verify             - Check both the file name and checksum in comparing with current Dataset entries.");
+        println("      -replace            - Upload files that have changed as new versions of the files in the Dataset (using Dataverse's file replace API), rather than adding them as additional files. Implies -verify.");
         println("      -skip=<n>           - a number of files to skip before starting processing (saves time when you know the first n files have been uploaded before)");
+        println("      -checksumcache=<file> - keep calculated checksums in <file> so that unchanged files are not read again to calculate them (can be shared by several DVUploader runs)");
+        println("      -plan               - work out what the run will do (which files are new, unchanged, changed or only in the dataset, with totals) before sending anything, and report progress against those totals. Every local directory is read (and with -verify, every existing file checked) before the first file is sent");
+        println("      -plan=<file>        - as -plan, and write the sync plan to <file> as JSON. With -listonly, the plan is always made and is written to DVUploaderPlan_<time>.json by default");
+        println("      -cachedir=<dir>     - keep a cache of the dataset's file listing and other API responses in <dir>, so that later runs only download them again if the dataset has changed");
+        println("      -journal=<file>     - record the progress of each file in <file> so that a rerun can verify completed files without re-reading them, can register files that were sent to storage but never added to the dataset, and can continue interrupted multipart uploads");
+        println("      -fileconcurrency=<n> - upload up to n files at a time (default 1). Files in a directory are registered with Dataverse once all of them have been uploaded.");
+        println("      -pipeline[=<d>,<u>,<r>] - run direct uploads as a pipeline with d threads calculating checksums, u threads sending files to storage and r threads registering files with Dataverse (default 2,4,1)");
+        println("      -maxposts=<n>       - with -uploadviaserver, post up to n files to Dataverse at once (default 1). Posts hold off while the dataset is locked.");
+        println("      -bundle[=<n>[,<MB>[,<KB>]]] - with -uploadviaserver, send files of up to KB (default 1024) in zip archives of up to n files (default 1000, Dataverse's default limit) or MB (default 100), which Dataverse unpacks into the dataset");
+        println("      -adaptive[=<s>[,<a>]] - adjust the number of requests in flight as the upload goes: up while throughput grows and latency stays flat, down on server errors, timeouts or rising latency. Transfers to storage start at -maxparts and go up to s (default 64); calls to Dataverse go up to a (default 16)");
+        println("      -maxrate=<rate>     - limit the rate all uploads together send data at, in MB/s. <rate> can be one number, a daily schedule of the times each rate starts (e.g. 08:00=20,18:00=200), or @<file> to read either from a file that is checked for changes every few seconds, so the limit can be changed during the upload. 0 means no limit");
+        println("      -maxparts=<n>       - the number of parts of large files sent to storage at once, across all files (default 4)");
+        println("      -maxinflight=<MB>   - the most data, in MB, in parts queued or being sent to storage at once, across all files (default 1024)");
+        println("      -prefetch[=<n>]     - request upload URLs for the next n files (default 8) while earlier files are being sent");
+        println("      -registrationbatch=<n>[,<KB>[,<s>]] - add uploaded files to the dataset in batches of up to n files (default 1000) or KB of metadata (default 2048), sent at least every s seconds (default 60)");
         println("      -recurse            - recurse into subdirectories");
         println("      -maxlockwait        - the maximum time to wait (in seconds) for a Dataset lock (i.e. while the last file is ingested) to expire (default 60 seconds)");
         println("      -trustall           - trust all server certificates (i.e. for use when testing with self-signed server certificates)");
@@ -229,6 +331,135 @@ public class DVUploader extends AbstractUploader {
                 println("Unable to parse max wait time for locks, using default (60 seconds)");
             }
             return true;
+        } else if (arg.startsWith("-pipeline")) {
+            pipelineThreads = new int[]{2, httpConcurrency, 1};
+            if (arg.contains(argSeparator)) {
+                String[] counts = arg.substring(arg.indexOf(argSeparator) + 1).split(",");
+                try {
+                    for (int i = 0; i < Math.min(counts.length, pipelineThreads.length); i++) {
+                        pipelineThreads[i] = Math.max(1, Integer.parseInt(counts[i].trim()));
+                    }
+                } catch (NumberFormatException nfe) {
+                    println("Unable to parse pipeline thread counts, using defaults");
+                    pipelineThreads = new int[]{2, httpConcurrency, 1};
+                }
+            }
+            println("Will use a pipeline for direct uploads");
+            return true;
+        } else if (arg.startsWith("-maxparts")) {
+            try {
+                httpConcurrency = Math.max(1, Integer.parseInt(arg.substring(arg.indexOf(argSeparator) + 1)));
+                println("Will send up to " + httpConcurrency + " parts at a time");
+            } catch (NumberFormatException nfe) {
+                println("Unable to parse the number of parts to send at once, using default (" + httpConcurrency + ")");
+            }
+            return true;
+        } else if (arg.startsWith("-maxposts")) {
+            try {
+                maxPosts = Math.max(1, Integer.parseInt(arg.substring(arg.indexOf(argSeparator) + 1)));
+                println("Will post up to " + maxPosts + " files at a time (with -uploadviaserver)");
+            } catch (NumberFormatException nfe) {
+                println("Unable to parse the number of files to post at once, using default (" + maxPosts + ")");
+            }
+            return true;
+        } else if (arg.startsWith("-bundle")) {
+            bundleFiles = 1000;
+            if (arg.contains(argSeparator)) {
+                String[] values = arg.substring(arg.indexOf(argSeparator) + 1).split(",");
+                try {
+                    bundleFiles = Math.max(1, Integer.parseInt(values[0].trim()));
+                    if (values.length > 1) {
+                        bundleBytes = Math.max(1, Long.parseLong(values[1].trim())) * 1024 * 1024;
+                    }
+                    if (values.length > 2) {
+                        bundleFileSize = Math.max(1, Long.parseLong(values[2].trim())) * 1024;
+                    }
+                } catch (NumberFormatException nfe) {
+                    println("Unable to parse bundle limits, using defaults");
+                    bundleFiles = 1000;
+                }
+            }
+            println("Will send small files in zip bundles (with -uploadviaserver)");
+            return true;
+        } else if (arg.startsWith("-adaptive")) {
+            adaptive = true;
+            if (arg.contains(argSeparator)) {
+                String[] values = arg.substring(arg.indexOf(argSeparator) + 1).split(",");
+                try {
+                    maxStorageConcurrency = Math.max(1, Integer.parseInt(values[0].trim()));
+                    if (values.length > 1) {
+                        maxApiConcurrency = Math.max(1, Integer.parseInt(values[1].trim()));
+                    }
+                } catch (NumberFormatException nfe) {
+                    println("Unable to parse adaptive concurrency limits, using defaults");
+                    maxStorageConcurrency = 64;
+                    maxApiConcurrency = 16;
+                }
+            }
+            println("Will adjust concurrency as the upload goes (up to " + maxStorageConcurrency + " transfers to storage and " + maxApiConcurrency + " calls to Dataverse)");
+            return true;
+        } else if (arg.startsWith("-maxrate")) {
+            try {
+                bandwidthLimiter = new BandwidthLimiter(arg.substring(arg.indexOf(argSeparator) + 1));
+            } catch (IllegalArgumentException e) {
+                println(e.getMessage() + ". Exiting.");
+                System.exit(1);
+            }
+            return true;
+        } else if (arg.startsWith("-maxinflight")) {
+            try {
+                maxBytesInFlight = Math.max(1, Long.parseLong(arg.substring(arg.indexOf(argSeparator) + 1))) * 1024 * 1024;
+                println("Will have up to " + (maxBytesInFlight / (1024 * 1024)) + " MB of parts in flight");
+            } catch (NumberFormatException nfe) {
+                println("Unable to parse the MB of parts in flight, using default (" + (maxBytesInFlight / (1024 * 1024)) + " MB)");
+            }
+            return true;
+        } else if (arg.startsWith("-prefetch")) {
+            prefetchFiles = 8;
+            if (arg.contains(argSeparator)) {
+                try {
+                    prefetchFiles = Math.max(1, Integer.parseInt(arg.substring(arg.indexOf(argSeparator) + 1)));
+                } catch (NumberFormatException nfe) {
+                    println("Unable to parse the number of files to request upload URLs for in advance, using default (" + prefetchFiles + ")");
+                }
+            }
+            return true;
+        } else if (arg.startsWith("-registrationbatch")) {
+            String[] limits = arg.substring(arg.indexOf(argSeparator) + 1).split(",");
+            try {
+                batchFiles = Math.max(1, Integer.parseInt(limits[0].trim()));
+                if (limits.length > 1) {
+                    batchBytes = Math.max(1, Long.parseLong(limits[1].trim())) * 1024;
+                }
+                if (limits.length > 2) {
+                    batchSeconds = Math.max(1, Integer.parseInt(limits[2].trim()));
+                }
+            } catch (NumberFormatException nfe) {
+                println("Unable to parse registration batch limits, using defaults");
+            }
+            return true;
+        } else if (arg.equals("-replace")) {
+            replaceChanged = true;
+            verify = true;
+            println("Will replace files that have changed with new versions (implies -verify)");
+            return true;
+        } else if (arg.equals("-plan")) {
+            planning = true;
+            println("Will plan the run before sending any files");
+            return true;
+        } else if (arg.startsWith("-plan=")) {
+            planning = true;
+            planFile = arg.substring(arg.indexOf(argSeparator) + 1);
+            println("Will write the sync plan to: " + planFile);
+            return true;
+        } else if (arg.startsWith("-cachedir")) {
+            cacheDir = arg.substring(arg.indexOf(argSeparator) + 1);
+            println("Using API cache directory: " + cacheDir);
+            return true;
+        } else if (arg.startsWith("-journal")) {
+            journalFile = arg.substring(arg.indexOf(argSeparator) + 1);
+            println("Using upload journal: " + journalFile);
+            return true;
         }else if (arg.equals("-noIngest")) {
                 noIngest = true;
                 println("Telling Dataverse to skip ingest for tabular files");
@@ -247,6 +478,18 @@ public class DVUploader extends AbstractUploader {
     public void processRequests() {
                     httpclient = getSharedHttpClient();
 
+        if (cacheDir != null) {
+            try {
+                apiCache = new ApiCache(new File(cacheDir), server);
+            } catch (IOException e) {
+                println("Unable to use cache directory " + cacheDir + " : " + e.getMessage() + " - responses will not be cached");
+            }
+        }
+        String cachedAlgorithm = (apiCache != null) ? apiCache.getFixityAlgorithm() : null;
+        if (cachedAlgorithm != null) {
+            fixityAlgorithm = cachedAlgorithm;
+            println("Using FixityAlgorithm configured for this Dataverse (cached): " + fixityAlgorithm);
+        } else {
             try {
                 // This api call will check for the fixityAlgorithm. Before v5.14, Dataverse servers should respond with a 404 and we'll use the default.
                 // http://$SERVER/api/files/fixityAlgorithm
@@ -254,7 +497,7 @@ public class DVUploader extends AbstractUploader {
                 String serviceUrl = server + "/api/files/fixityAlgorithm";
                 HttpGet httpget = new HttpGet(serviceUrl);
 
-                CloseableHttpResponse response = httpclient.execute(httpget, getLocalContext());
+                CloseableHttpResponse response = getApiClient().execute(httpget, getLocalContext());
                  try {
                     switch (response.getStatusLine().getStatusCode()) {
                         case 200:
@@ -266,6 +509,9 @@ public class DVUploader extends AbstractUploader {
                                     MessageDigest.getInstance(alg);
                                     fixityAlgorithm = alg;
                                     println("Using FixityAlgorithm configured for this Dataverse: " + fixityAlgorithm);
+                                    if (apiCache != null) {
+                                        apiCache.putFixityAlgorithm(fixityAlgorithm);
+                                    }
                                 } catch (NoSuchAlgorithmException e) {
                                     println("Unknown FixityAlgorithm requested by this Dataverse: " + alg + ", using the default: " + fixityAlgorithm);
                                 }
@@ -273,6 +519,9 @@ public class DVUploader extends AbstractUploader {
                             break;
                         case 404:
                             println("FixityAlgorithm API call not available, using the default: " + fixityAlgorithm);
+                            if (apiCache != null) {
+                                apiCache.putFixityAlgorithm(fixityAlgorithm);
+                            }
                             break;
                         default:
                             // Report unexpected errors and assume dataset doesn't exist
@@ -286,7 +535,76 @@ public class DVUploader extends AbstractUploader {
             } catch (IOException e) {
                 println("Error processing fixityAlgorithm API request: " + e.getMessage());
             }
+        }
+        if (journalFile != null) {
+            try {
+                journal = new UploadJournal(new File(journalFile));
+            } catch (IOException e) {
+                println("Unable to open upload journal " + journalFile + " : " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        if ((pipelineThreads != null) && directUpload && !listonly) {
+            pipeline = new DirectUploadPipeline(this, pipelineThreads[0], pipelineThreads[1], pipelineThreads[2], 5);
+        }
+        if ((prefetchFiles > 0) && directUpload && !listonly) {
+            urlPrefetcher = new UploadUrlPrefetcher(this, prefetchFiles);
+        }
+        if ((maxPosts > 1) && !directUpload && !listonly && (fileConcurrency == 1)) {
+            serverUploads = new BlockingExecutor("server-upload", maxPosts, maxPosts);
+        }
+        if ((bundleFiles > 0) && !directUpload && !listonly && !importRO) {
+            bundler = new ZipBundler(this, bundleFiles, bundleBytes, bundleFileSize, maxPosts);
+        }
         super.processRequests();
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        if (bundler != null) {
+            bundler.shutdown();
+        }
+        if (serverUploads != null) {
+            serverUploads.shutdown();
+            try {
+                serverUploads.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (urlPrefetcher != null) {
+            urlPrefetcher.shutdown();
+        }
+        if (transferScheduler != null) {
+            transferScheduler.shutdown();
+        }
+        if (registrar != null) {
+            registrar.shutdown();
+            try {
+                registrar.awaitTermination(1, TimeUnit.HOURS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (lockMonitor != null) {
+            lockMonitor.shutdown();
+        }
+        if (listingUpdated) {
+            // Save the listing with the files registered in this run, as of the version they're now in -
+            // unless anyone else has changed the dataset, in which case the listing is missing their changes
+            String versionKey = getDatasetVersionKey();
+            String expected;
+            synchronized (versionLock) {
+                expected = expectedVersion;
+            }
+            if ((versionKey != null) && versionKey.equals(expected)) {
+                apiCache.putListing(datasetPID, versionKey, existingItems);
+            } else {
+                println("Not caching the updated dataset listing: the dataset may have been changed by others during this run");
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
     }
     
     private ZipFile zf = null;
@@ -302,6 +620,121 @@ public class DVUploader extends AbstractUploader {
         return new HttpClientContext();
     }
 
+    @Override
+    protected boolean supportsConcurrentUploads() {
+        return true;
+    }
+
+    @Override
+    protected CompletableFuture<String> startDatafileUpload(Resource file, String path, String existingUri) {
+        if ((urlPrefetcher == null) || importRO || (existingUri != null) || file.isDirectory()
+                || ((journal != null) && ((journal.get(file) != null) || (journal.getMultipartUpload(file) != null)))) {
+            return startUpload(file, path, existingUri);
+        }
+        //Get the upload URLs while the files ahead of this one are being uploaded
+        urlPrefetcher.prefetch(file);
+        CompletableFuture<String> upload;
+        try {
+            upload = startUpload(file, path, existingUri);
+        } catch (RuntimeException e) {
+            urlPrefetcher.release(file);
+            throw e;
+        }
+        // If the file was skipped or failed before its URLs were used, they mustn't hold a place in the lookahead
+        upload.whenComplete((id, t) -> urlPrefetcher.release(file));
+        return upload;
+    }
+
+    private CompletableFuture<String> startUpload(Resource file, String path, String existingUri) {
+        if ((bundler != null) && (existingUri == null) && bundler.accepts(file)) {
+            StagedFile sf = new StagedFile(file, reportDatafile(file, path, existingUri));
+            if (!prepareDirectUpload(sf)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return bundler.add(file, sf.goodParentPath.isEmpty() ? sf.goodFileName : sf.goodParentPath + "/" + sf.goodFileName);
+        }
+        if ((serverUploads != null) && !importRO && (existingUri == null)) {
+            return CompletableFuture.supplyAsync(() -> uploadDatafile(file, path, existingUri), serverUploads);
+        }
+        if (!directUpload || listonly || importRO || (existingUri != null)) {
+            return super.startDatafileUpload(file, path, existingUri);
+        }
+        if (pipeline != null) {
+            return pipeline.submit(file, reportDatafile(file, path, existingUri));
+        }
+        if (fileExecutor == null) {
+            // Send this file on the transfer threads while the scan moves on to the next one
+            return startDirectUpload(file, reportDatafile(file, path, existingUri));
+        }
+        return super.startDatafileUpload(file, path, existingUri);
+    }
+
+    /**
+     * Bundled files aren't sent until their bundle is full, so send the
+     * current bundle before waiting for one of them (e.g. at the end of a
+     * directory).
+     */
+    @Override
+    protected String awaitDatafile(Future<String> upload) throws IOException {
+        if ((bundler != null) && !upload.isDone() && bundler.hasPending()) {
+            bundler.flush();
+        }
+        return super.awaitDatafile(upload);
+    }
+
+    /**
+     * Send a file to storage on the TransferScheduler's file threads, then
+     * register it on a thread of its own. Files are registered in the order
+     * they were submitted, whatever order their transfers finish in.
+     *
+     * @param path - the path of the file, including its name
+     */
+    private CompletableFuture<String> startDirectUpload(Resource file, String path) {
+        int retries = 5;
+        httpclient = getSharedHttpClient();
+        StagedFile sf = new StagedFile(file, path);
+        if (!prepareDirectUpload(sf)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<StagedFile> stored;
+        if (restoreStoredFile(sf)) {
+            stored = CompletableFuture.completedFuture(sf);
+        } else {
+            stored = getTransferScheduler().submitFile(() -> {
+                try {
+                    storeFile(sf, retries);
+                } catch (IOException e) {
+                    println("Error processing request for storage id" + file.getAbsolutePath() + " : " + e.getMessage());
+                    sf.fail();
+                }
+            }).handle((v, t) -> {
+                if (t != null) {
+                    println("Unable to send " + file.getAbsolutePath() + " : " + t.getMessage());
+                    sf.fail();
+                }
+                return sf;
+            });
+        }
+        synchronized (this) {
+            if (registrar == null) {
+                registrar = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "registration");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            CompletableFuture<String> registered = stored.thenCombineAsync(lastRegistration, (staged, previous) -> {
+                if (!staged.hasFailed()) {
+                    registerStoredFile(staged, retries);
+                }
+                return staged.dataId;
+            }, registrar);
+            // A failed registration mustn't stop the ones after it
+            lastRegistration = registered.handle((id, t) -> (Void) null);
+            return registered;
+        }
+    }
+
     public CloseableHttpClient getSharedHttpClient() {
         if (httpclient == null) {
             try {
@@ -310,15 +743,37 @@ public class DVUploader extends AbstractUploader {
                         .setConnectionManager(cm)
                         .setDefaultRequestConfig(config)
                         .build();
+                if (bandwidthLimiter != null) {
+                    httpclient = new ThrottledHttpClient(httpclient, bandwidthLimiter);
+                }
+                if (adaptive) {
+                    storageLimiter = new AdaptiveLimiter("Storage", httpConcurrency, 1, maxStorageConcurrency);
+                    apiLimiter = new AdaptiveLimiter("Dataverse API", Math.max(4, maxPosts), 1, maxApiConcurrency);
+                    httpclient = new AdaptiveHttpClient(httpclient, new URL(server).getHost(), apiLimiter, storageLimiter);
+                }
 
-            } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException ex) {
+            } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException | MalformedURLException ex) {
                 Logger.getLogger(DVUploader.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
         return httpclient;
     }
 
-    HashMap<String, JSONObject> existingItems = null;
+    /**
+     * @return the client to use for read-only API calls - one that caches
+     * responses if there is a cache directory
+     */
+    synchronized CloseableHttpClient getApiClient() {
+        if (apiClient == null) {
+            getSharedHttpClient();
+            apiClient = (apiCache != null) ? apiCache.getCachingClient(cm, config) : httpclient;
+        }
+        return apiClient;
+    }
+
+    ExistingFileIndex existingItems = null;
+    // Files per request when listing the dataset's files in pages
+    private static final int LISTING_PAGE_SIZE = 10000;
     boolean datasetMDRetrieved = false;
 
     CloseableHttpClient httpclient = null;
@@ -349,87 +804,14 @@ public class DVUploader extends AbstractUploader {
 
         // One-time: get metadata for dataset to see if it exists and what files it
         // contains
-        if (!datasetMDRetrieved) {
-            httpclient = getSharedHttpClient();
-            
-            JSONObject unknownChecksum = new JSONObject();
-            unknownChecksum.put("type", "md5");
-            unknownChecksum.put("value", "Unknown");
-
-            try {
-                // This api call will find the dataset and, if found, retrieve the list of files
-                // in the current version (the only one we can add to)
-                // http://$SERVER/api/datasets/$id/versions/$versionId/files?key=$apiKey
-
-                String serviceUrl = server + "/api/datasets/:persistentId/versions/:latest/files?key=" + apiKey
-                        + "&persistentId=" + datasetPID;
-                HttpGet httpget = new HttpGet(serviceUrl);
-
-                CloseableHttpResponse response = httpclient.execute(httpget, getLocalContext());
-                JSONArray datafileList = null;
-                try {
-                    switch (response.getStatusLine().getStatusCode()) {
-                        case 200:
-                            HttpEntity resEntity = response.getEntity();
-                            if (resEntity != null) {
-                                String res = EntityUtils.toString(resEntity);
-                                datafileList = (new JSONObject(res)).getJSONArray("data");
-                                existingItems = new HashMap<>();
-                            }
-                            break;
-                        case 404:
-                            println("Dataset Not Found: " + datasetPID);
-                            break;
-                        default:
-                            // Report unexpected errors and assume dataset doesn't exist
-                            println("Error response when checking for existing item at " + sourcepath + " : "
-                                    + response.getStatusLine().getReasonPhrase());
-                            break;
-                    }
-                } finally {
-                    response.close();
-                }
-                boolean convertedFiles = false;
-                if (datafileList != null) {
-                    for (int i = 0; i < datafileList.length(); i++) {
-                        JSONObject entry = datafileList.getJSONObject(i);
-                        JSONObject df = entry.getJSONObject("dataFile");
-                        if (df.has("originalFileFormat")
-                                && (!df.getString("contentType").equals(df.getString("originalFileFormat")))) {
-                            println("The file named " + df.getString("filename")
-                                    + " on the server was created by Dataverse's ingest process from an original uploaded file");
-                            convertedFiles = true;
-                            if(df.has("originalFileName")) {
-                                String filepath=df.getString("originalFileName");
-                                if(entry.has("directoryLabel")) {
-                                    filepath=entry.get("directoryLabel") + "/" + filepath;
-                                }
-                                println("Recording original file, checksum unknown: " + filepath);
-                                existingItems.put(filepath, unknownChecksum);
-                            }
-                        }
-                        String filepath = df.getString("filename");
-                        if(entry.has("directoryLabel")) {
-                            filepath=entry.get("directoryLabel") + "/" + filepath;
-                        }
-                        println("Recording: " + filepath);
-                        existingItems.put(filepath, df.getJSONObject("checksum"));
-                    }
-                    if (convertedFiles) {
-                        println("*****   When a tabular file is ingested in Dataverse, DVUploader cannot get the checksum for the original file from Dataverse.");
-                        println("*****   DVUploader will avoid re-uploading files with the same original name and directoryLabel to Dataverse when Dataverse has created a derived file during ingest such as those listed above.");
-                        println("*****   However, since it cannot verify the checksum, when using the -verify flag it will report an ingested file as being different on the server, even if it is not, and will therefore try to upload a new copy.");
-                        println("*****   Using -verify is thus not recommended when you have ingested files (except perhaps in combination with -listonly).");
-                    }
-
-                }
-
-            } catch (IOException e) {
-                println("Error processing check on " + sourcepath + " : " + e.getMessage());
-            } finally {
-                datasetMDRetrieved = true;
-            }
-
+        retrieveDatasetFiles(sourcepath);
+
+        SyncPlan.Category planned = ((plan != null) && !item.isDirectory()) ? plan.getCategory(sourcepath) : null;
+        if (planned != null) {
+            // Already checked (including with -verify) while planning. With -replace, changed files
+            // are reported as existing and replaceDatafile() sends the new version
+            return ((planned == SyncPlan.Category.IDENTICAL) || (planned == SyncPlan.Category.EXISTING)
+                    || ((planned == SyncPlan.Category.CHANGED) && replaceChanged)) ? existingItems.getTagId(sourcepath) : null;
         }
 
         if (relPath.equals("/")) {
@@ -440,10 +822,7 @@ public class DVUploader extends AbstractUploader {
                     tagId = datasetPID;
                 } else {
                     // A single file on the command line
-                    if (existingItems.containsKey(sourcepath)) {
-                        JSONObject checksum = existingItems.get(sourcepath);
-                        tagId = checksum.getString("type") + ":" + checksum.getString("value");
-                    }
+                    tagId = existingItems.getTagId(sourcepath);
 
                 }
             }
@@ -454,9 +833,8 @@ public class DVUploader extends AbstractUploader {
                 return null;
             } else {
                 // A file within the local directory
-                if ((existingItems != null) && existingItems.containsKey(sourcepath)) {
-                    JSONObject checksum = existingItems.get(sourcepath);
-                    tagId = checksum.getString("type") + ":" + checksum.getString("value");
+                if (existingItems != null) {
+                    tagId = existingItems.getTagId(sourcepath);
                 }
             }
         }
@@ -466,20 +844,426 @@ public class DVUploader extends AbstractUploader {
         return (tagId);
     }
 
-    static HashMap<String, String> hashIssues = new HashMap<String, String>();
+    /**
+     * Work out what the run will do before sending anything: compare every
+     * file named on the command line (and in the directories named) with the
+     * dataset's listing, checking checksums in parallel with -verify, and
+     * report the totals. itemExists() then uses the plan rather than checking
+     * each file again, and progress is reported against the planned totals.
+     * Only done with -plan or -listonly, since nothing is sent until the whole
+     * tree has been read.
+     */
+    @Override
+    protected void planRequests(long skip, long max) {
+        if (!planning && !listonly) {
+            return;
+        }
+        plan = new SyncPlan();
+        retrieveDatasetFiles("/");
+        ExecutorService verifier = null;
+        List<CompletableFuture<Void>> checks = new ArrayList<CompletableFuture<Void>>();
+        if (verify && (existingItems != null)) {
+            verifier = new BlockingExecutor("plan-verify", PLAN_VERIFY_THREADS, 2 * PLAN_VERIFY_THREADS);
+        }
+        try {
+            for (String request : requests) {
+                Resource file = new FileResource(request);
+                if (isExcluded(file.getName())) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    planCollection(file, "/" + file.getName().trim(), verifier, checks);
+                } else {
+                    planFile(file, "/", verifier, checks);
+                }
+            }
+            joinChecks(checks);
+        } finally {
+            if (verifier != null) {
+                verifier.shutdown();
+            }
+        }
+        if (existingItems != null) {
+            try {
+                existingItems.forEach((dirLabel, name, type, value, id) -> {
+                    String path = (dirLabel == null) ? name : dirLabel + "/" + name;
+                    if (!plan.contains(path)) {
+                        plan.add(path, 0, SyncPlan.Category.REMOTE_ONLY);
+                    }
+                });
+            } catch (IOException e) {
+                // Not thrown by this visitor
+            }
+        }
+        plan.limit(skip, max);
+        plan.printSummary();
+        if ((planFile == null) && listonly) {
+            planFile = "DVUploaderPlan_" + System.currentTimeMillis() + ".json";
+        }
+        if (planFile != null) {
+            try {
+                plan.write(new File(planFile));
+                println("Sync plan written to: " + planFile);
+            } catch (IOException e) {
+                println("Unable to write the sync plan to " + planFile + " : " + e.getMessage());
+            }
+        }
+        plan.startTransfers();
+    }
+
+    // Only goes into subdirectories with -recurse, as preprocessCollection() refuses them otherwise
+    private void planCollection(Resource dir, String path, ExecutorService verifier, List<CompletableFuture<Void>> checks) {
+        Iterator<Resource> children = dir.listResources().iterator();
+        try {
+            while (children.hasNext()) {
+                Resource child = children.next();
+                if (isExcluded(child.getName())) {
+                    continue;
+                }
+                if (child.isDirectory()) {
+                    if (recurse) {
+                        planCollection(child, path + "/" + child.getName().trim(), verifier, checks);
+                    }
+                } else {
+                    planFile(child, path + "/", verifier, checks);
+                }
+            }
+        } finally {
+            Resource.closeListing(children);
+        }
+    }
+
+    // Wait for the checksum checks started so far
+    private static void joinChecks(List<CompletableFuture<Void>> checks) {
+        CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[checks.size()])).join();
+        checks.clear();
+    }
+
+    private void planFile(Resource item, String path, ExecutorService verifier, List<CompletableFuture<Void>> checks) {
+        String sourcepath = getGoodSourcePath((path.length() == 1 ? "" : path.substring(1)), item.getName());
+        String tagId = (existingItems == null) ? null : existingItems.getTagId(sourcepath);
+        if (tagId == null) {
+            plan.add(sourcepath, item.length(), SyncPlan.Category.NEW);
+        } else if (verifier == null) {
+            plan.add(sourcepath, item.length(), SyncPlan.Category.EXISTING);
+        } else {
+            SyncPlan.Entry entry = plan.add(sourcepath, item.length(), SyncPlan.Category.EXISTING);
+            checks.add(CompletableFuture.runAsync(() -> {
+                plan.setCategory(entry, (verifyDataByHash(tagId, path, item) != null)
+                        ? SyncPlan.Category.IDENTICAL : SyncPlan.Category.CHANGED);
+            }, verifier));
+            if (checks.size() >= PLAN_CHECK_BATCH) {
+                // Don't hold a Future for every file in a large tree
+                joinChecks(checks);
+            }
+        }
+    }
+
+    /**
+     * Get the list of files in the dataset, the first time this is called.
+     */
+    private void retrieveDatasetFiles(String sourcepath) {
+        if (datasetMDRetrieved) {
+            return;
+        }
+        httpclient = getSharedHttpClient();
+        
+        try {
+            List<FileListingReader> readers = new ArrayList<FileListingReader>();
+            existingItems = listDatasetFiles(sourcepath, readers);
+            boolean convertedFiles = false;
+            for (FileListingReader reader : readers) {
+                convertedFiles |= reader.hasConvertedFiles();
+            }
+            if (convertedFiles) {
+                println("*****   When a tabular file is ingested in Dataverse, DVUploader cannot get the checksum for the original file from Dataverse.");
+                println("*****   DVUploader will avoid re-uploading files with the same original name and directoryLabel to Dataverse when Dataverse has created a derived file during ingest such as those listed above.");
+                println("*****   However, since it cannot verify the checksum, when using the -verify flag it will report an ingested file as being different on the server, even if it is not, and will therefore try to upload a new copy.");
+                println("*****   Using -verify is thus not recommended when you have ingested files (except perhaps in combination with -listonly).");
+            }
+
+        } finally {
+            datasetMDRetrieved = true;
+        }
+    }
+
+    /**
+     * Get the files in the latest version of the dataset. Large listings are
+     * requested in pages, several at a time, when the server supports it (it
+     * reports the number of files via .../files/counts); otherwise the whole
+     * listing is requested at once.
+     *
+     * @param readers - gets the readers used, to check for ingested files
+     * @return the files, or null if the dataset wasn't found or the listing
+     * failed
+     */
+    private ExistingFileIndex listDatasetFiles(String sourcepath, List<FileListingReader> readers) {
+        if (apiCache != null) {
+            listingVersion = getDatasetVersionKey();
+            if (listingVersion != null) {
+                ExistingFileIndex cached = apiCache.getListing(datasetPID, listingVersion);
+                if (cached != null) {
+                    println("Dataset unchanged since the last run - using the cached list of its " + cached.size() + " files");
+                    synchronized (versionLock) {
+                        expectedVersion = listingVersion;
+                    }
+                    return cached;
+                }
+            }
+        }
+        ExistingFileIndex index = listAllDatasetFiles(sourcepath, readers);
+        if ((index != null) && (listingVersion != null)) {
+            apiCache.putListing(datasetPID, listingVersion, index);
+        }
+        synchronized (versionLock) {
+            expectedVersion = listingVersion;
+        }
+        return index;
+    }
+
+    private ExistingFileIndex listAllDatasetFiles(String sourcepath, List<FileListingReader> readers) {
+        ExistingFileIndex index = new ExistingFileIndex();
+        int total = getDatasetFileCount();
+        if (total > LISTING_PAGE_SIZE) {
+            int pages = (total + LISTING_PAGE_SIZE - 1) / LISTING_PAGE_SIZE;
+            println("Retrieving the list of " + total + " files in the dataset in " + pages + " pages");
+            BlockingExecutor executor = new BlockingExecutor("listing", Math.min(pages, httpConcurrency), pages);
+            List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+            try {
+                for (int page = 0; page < pages; page++) {
+                    FileListingReader reader = new FileListingReader(index);
+                    readers.add(reader);
+                    int offset = page * LISTING_PAGE_SIZE;
+                    results.add(CompletableFuture.supplyAsync(() -> readListing(reader, offset, sourcepath), executor));
+                }
+                boolean ok = true;
+                for (CompletableFuture<Boolean> result : results) {
+                    ok &= result.join();
+                }
+                if (ok) {
+                    return index;
+                }
+            } finally {
+                executor.shutdown();
+            }
+            println("Unable to retrieve the list of files in pages - trying a single request");
+            index = new ExistingFileIndex();
+            readers.clear();
+        }
+        FileListingReader reader = new FileListingReader(index);
+        readers.add(reader);
+        return readListing(reader, -1, sourcepath) ? index : null;
+    }
+
+    /**
+     * @return a key identifying the current state of the dataset's latest
+     * version (its id, state and last update time), or null if it can't be
+     * found
+     */
+    private String getDatasetVersionKey() {
+        String urlString = server + "/api/datasets/:persistentId/versions/:latest?excludeFiles=true&key=" + apiKey
+                + "&persistentId=" + datasetPID;
+        // Not cached - this is what tells us whether cached information is current
+        try (CloseableHttpResponse response = getSharedHttpClient().execute(new HttpGet(urlString), getLocalContext())) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return null;
+            }
+            // Older servers ignore excludeFiles, so stop reading once the fields needed have been found
+            String id = null;
+            String state = null;
+            String updated = null;
+            try (JsonParser parser = new JsonFactory().createParser(response.getEntity().getContent())) {
+                if ((parser.nextToken() != JsonToken.START_OBJECT)) {
+                    return null;
+                }
+                while ((parser.nextToken() == JsonToken.FIELD_NAME) && ((id == null) || (state == null) || (updated == null))) {
+                    String field = parser.currentName();
+                    JsonToken token = parser.nextToken();
+                    if ("data".equals(field) && (token == JsonToken.START_OBJECT)) {
+                        while ((parser.nextToken() == JsonToken.FIELD_NAME) && ((id == null) || (state == null) || (updated == null))) {
+                            String dataField = parser.currentName();
+                            parser.nextToken();
+                            switch (dataField) {
+                                case "id":
+                                    id = parser.getValueAsString();
+                                    break;
+                                case "versionState":
+                                    state = parser.getValueAsString();
+                                    break;
+                                case "lastUpdateTime":
+                                    updated = parser.getValueAsString();
+                                    break;
+                                default:
+                                    parser.skipChildren();
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            if ((id == null) || (state == null) || (updated == null)) {
+                return null;
+            }
+            return id + "/" + state + "/" + updated;
+        } catch (IOException e) {
+            println("Unable to check the dataset version: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Add a file registered in this run to the cached listing (if there is
+     * one), so the next run doesn't have to list the dataset again just
+     * because of this run's changes.
+     */
+    private void listingAdded(String dirLabel, String name, String type, String value, long id) {
+        if ((apiCache != null) && (existingItems != null) && (listingVersion != null)) {
+            existingItems.put(dirLabel, name, type, value, id);
+            listingUpdated = true;
+        }
+    }
+
+    /**
+     * Make a call that changes the dataset's files, keeping track of the
+     * version the dataset is in afterwards. If the version has moved on between
+     * this run's calls, someone else has changed the dataset too. Calls that
+     * overlap can't be told apart from changes by others, so they count as
+     * such. The version is fetched outside versionLock, so other calls don't
+     * wait for it.
+     */
+    private <T> T trackDatasetChange(Supplier<T> call) {
+        boolean tracking;
+        synchronized (versionLock) {
+            tracking = (expectedVersion != null);
+        }
+        String before = tracking ? getDatasetVersionKey() : null;
+        synchronized (versionLock) {
+            if (expectedVersion != null) {
+                if ((registrationsInFlight > 0) || !expectedVersion.equals(before)) {
+                    expectedVersion = null;
+                }
+            }
+            registrationsInFlight++;
+            registrationsStarted++;
+        }
+        try {
+            return call.get();
+        } finally {
+            long started;
+            synchronized (versionLock) {
+                registrationsInFlight--;
+                tracking = (registrationsInFlight == 0) && (expectedVersion != null);
+                started = registrationsStarted;
+            }
+            if (tracking) {
+                String after = getDatasetVersionKey();
+                synchronized (versionLock) {
+                    // A call started since then has already compared (and cleared) expectedVersion
+                    if ((expectedVersion != null) && (registrationsStarted == started)) {
+                        expectedVersion = after;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of files in the latest version of the dataset, or -1
+     * if the server doesn't report it (older servers can't list files in
+     * pages either)
+     */
+    private int getDatasetFileCount() {
+        String urlString = server + "/api/datasets/:persistentId/versions/:latest/files/counts?key=" + apiKey
+                + "&persistentId=" + datasetPID;
+        try (CloseableHttpResponse response = getApiClient().execute(new HttpGet(urlString), getLocalContext())) {
+            if (response.getStatusLine().getStatusCode() == 200) {
+                String res = EntityUtils.toString(response.getEntity());
+                return (new JSONObject(res)).getJSONObject("data").optInt("total", -1);
+            }
+            EntityUtils.consumeQuietly(response.getEntity());
+        } catch (IOException | JSONException e) {
+            println("Unable to get the number of files in the dataset: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Read one page of the dataset's file listing, or the whole listing if
+     * offset is negative.
+     *
+     * @return true if the listing was read
+     */
+    private boolean readListing(FileListingReader reader, int offset, String sourcepath) {
+        // This api call will find the dataset and, if found, retrieve the list of files
+        // in the current version (the only one we can add to)
+        // http://$SERVER/api/datasets/$id/versions/$versionId/files?key=$apiKey
+        String serviceUrl = server + "/api/datasets/:persistentId/versions/:latest/files?key=" + apiKey
+                + "&persistentId=" + datasetPID;
+        if (offset >= 0) {
+            serviceUrl = serviceUrl + "&limit=" + LISTING_PAGE_SIZE + "&offset=" + offset;
+        }
+        try (CloseableHttpResponse response = getApiClient().execute(new HttpGet(serviceUrl), getLocalContext())) {
+            switch (response.getStatusLine().getStatusCode()) {
+                case 200:
+                    HttpEntity resEntity = response.getEntity();
+                    if (resEntity != null) {
+                        // Read the listing as it arrives - it can be very large
+                        try (InputStream in = resEntity.getContent()) {
+                            reader.read(in);
+                        }
+                        return true;
+                    }
+                    break;
+                case 404:
+                    println("Dataset Not Found: " + datasetPID);
+                    break;
+                default:
+                    // Report unexpected errors and assume dataset doesn't exist
+                    println("Error response when checking for existing item at " + sourcepath + " : "
+                            + response.getStatusLine().getReasonPhrase());
+                    break;
+            }
+            EntityUtils.consumeQuietly(response.getEntity());
+        } catch (IOException e) {
+            println("Error processing check on " + sourcepath + " : " + e.getMessage());
+        }
+        return false;
+    }
+
+    // Filled in by several threads when -verify checks are made while planning
+    static Map<String, String> hashIssues = new ConcurrentHashMap<String, String>();
 
     @Override
     protected String verifyDataByHash(String tagId, String path, Resource item) {
-        String sourcepath = (path.startsWith("/") ? "" : path) + item.getName();
+        // The same path itemExists() looked the item up with
+        String sourcepath = getGoodSourcePath((path.length() == 1 ? "" : path.substring(1)), item.getName());
 
-        JSONObject checksum = existingItems.get(sourcepath);
-        if (!checksum.getString("value").equals(item.getHash(checksum.getString("type")))) {
-            hashIssues.put(sourcepath, "!!!: A different version of this item exists with " + checksum.getString("type") + " checksum: " + tagId);
+        String type = existingItems.getType(sourcepath);
+        if (!existingItems.getValue(sourcepath).equals(getLocalHash(item, type))) {
+            hashIssues.put(sourcepath, "!!!: A different version of this item exists with " + type + " checksum: " + tagId);
             return null;
         } // else it matches!
         return tagId;
     }
 
+    /**
+     * Get the hash of a local file, using the value recorded in the upload
+     * journal when the file was registered, if the file hasn't changed since.
+     */
+    private String getLocalHash(Resource item, String algorithm) {
+        if (journal != null) {
+            UploadJournal.Entry e = journal.get(item);
+            if ((e != null) && e.isRegistered() && algorithm.equals(e.algorithm)) {
+                return e.checksum;
+            }
+        }
+        // If the file turns out to be different, it will be uploaded and we'll need its fixity hash as well,
+        // so get both in one read
+        return item.getHashes(Arrays.asList(algorithm, fixityAlgorithm)).get(algorithm);
+    }
+
     
     
    
@@ -573,122 +1357,266 @@ public class DVUploader extends AbstractUploader {
     @Override
     protected void postProcessChildren(Resource dir) {
         if (!singleFile && directUpload) {
-            //Have to register all the files in this dir with Dataverse
-            int retries = 5;
-            //In case of prior 504 (or other) errors, make sure the dataset is OK before adding files
-            int total = 0;
-            // For new servers, wait up to maxWaitTime for a dataset lock to expire.
-            try {
-                while (isLocked() && (total < maxWaitTime)) {
-                    TimeUnit.SECONDS.sleep(1);
-                    total = total + 1;
-                }
-            } catch(InterruptedException ie) {
-                println("Error waiting for Dataverse dataset lock - skipping: " + dir.getAbsolutePath());
-                retries=0;
-            }
-                            
-            String urlString = server + "/api/datasets/:persistentId/addFiles";
-            urlString = urlString + "?persistentId=" + datasetPID + "&key=" + apiKey;
-            
-            while (retries > 0) {
-                HttpPost httppost = new HttpPost(urlString);
-                JSONArray jsonData = new JSONArray();
-                // ContentBody bin = file.getContentBody();
-                MultipartEntityBuilder meb = MultipartEntityBuilder.create();
-                for (Resource file : dir.listResources()) {
-                    if (!file.isDirectory()) {
-                        //println("Adding " + file.getName() + " to list: " + file.getMetadata().toString(2));
-                        JSONObject fileMetadata = file.getMetadata();
-                        if(!fileMetadata.isEmpty()) {
-                            jsonData.put(file.getMetadata());
-                        }
+            //Queue the files in this dir that were sent to storage to be registered with Dataverse
+            for (Resource file : dir.listResources()) {
+                if (!file.isDirectory()) {
+                    JSONObject fileMetadata = file.getMetadata();
+                    if ((fileMetadata != null) && !fileMetadata.isEmpty()) {
+                        getRegistrationBatcher().add(file);
                     }
                 }
-                meb.addTextBody("jsonData", jsonData.toString());
+            }
+        }
+    }
 
-                HttpEntity reqEntity = meb.build();
-                httppost.setEntity(reqEntity);
-                try {
-                    CloseableHttpResponse postResponse = httpclient.execute(httppost, getLocalContext());
-
-                    int postStatus = postResponse.getStatusLine().getStatusCode();
-                    String postRes = null;
-                    HttpEntity postEntity = postResponse.getEntity();
-                    if (postEntity != null) {
-                        postRes = EntityUtils.toString(postEntity);
-                        //println("Raw response: " +postRes);
-                    }
+    @Override
+    protected void finishRequests() {
+        if (registrationBatcher != null) {
+            registrationBatcher.shutdown();
+        }
+    }
+
+    synchronized RegistrationBatcher getRegistrationBatcher() {
+        if (registrationBatcher == null) {
+            registrationBatcher = new RegistrationBatcher(this, batchFiles, batchBytes, batchSeconds);
+        }
+        return registrationBatcher;
+    }
+
+    synchronized LockMonitor getLockMonitor() {
+        if (lockMonitor == null) {
+            lockMonitor = new LockMonitor(this::isLocked, maxWaitTime);
+        }
+        return lockMonitor;
+    }
 
-                    if (postStatus == 200) {
-                        JSONArray files = (new JSONObject(postRes)).getJSONObject("data")
-                                .getJSONArray("Files");
-                        JSONArray errArray = new JSONArray();
-                        List<String> errIds = new ArrayList<String>();
-                        for (int i = 0; i < files.length(); i++) {
-                            JSONObject fileResult = files.getJSONObject(i);
-                            if (fileResult.has("error Code: ")) {
-                                errArray.put(fileResult);
-                                errIds.add(fileResult.getString("storageIdentifier"));
+    /**
+     * Add files that have been sent to storage to the dataset with one
+     * /addFiles call.
+     *
+     * @param files - files with the metadata to register them with (see
+     * getFileMetadata())
+     */
+    void registerFiles(List<Resource> files) {
+        trackDatasetChange(() -> {
+            addFiles(files);
+            return null;
+        });
+    }
+
+    private void addFiles(List<Resource> files) {
+        int retries = 5;
+        //In case of prior 504 (or other) errors, make sure the dataset is OK before adding files
+        // For new servers, wait up to maxWaitTime for a dataset lock to expire.
+        getLockMonitor().waitUntilUnlocked();
+
+        String urlString = server + "/api/datasets/:persistentId/addFiles";
+        urlString = urlString + "?persistentId=" + datasetPID + "&key=" + apiKey;
+        
+        while (retries > 0) {
+            HttpPost httppost = new HttpPost(urlString);
+            JSONArray jsonData = new JSONArray();
+            // ContentBody bin = file.getContentBody();
+            MultipartEntityBuilder meb = MultipartEntityBuilder.create();
+            for (Resource file : files) {
+                //println("Adding " + file.getName() + " to list: " + file.getMetadata().toString(2));
+                jsonData.put(file.getMetadata());
+            }
+            meb.addTextBody("jsonData", jsonData.toString());
+
+            HttpEntity reqEntity = meb.build();
+            httppost.setEntity(reqEntity);
+            try {
+                CloseableHttpResponse postResponse = httpclient.execute(httppost, getLocalContext());
+
+                int postStatus = postResponse.getStatusLine().getStatusCode();
+                String postRes = null;
+                HttpEntity postEntity = postResponse.getEntity();
+                if (postEntity != null) {
+                    postRes = EntityUtils.toString(postEntity);
+                    //println("Raw response: " +postRes);
+                }
+
+                if (postStatus == 200) {
+                    JSONArray results = (new JSONObject(postRes)).getJSONObject("data")
+                            .getJSONArray("Files");
+                    JSONArray errArray = new JSONArray();
+                    List<String> errIds = new ArrayList<String>();
+                    Map<String, Long> fileIds = new HashMap<String, Long>();
+                    for (int i = 0; i < results.length(); i++) {
+                        JSONObject fileResult = results.getJSONObject(i);
+                        if (fileResult.has("error Code: ")) {
+                            errArray.put(fileResult);
+                            errIds.add(fileResult.getString("storageIdentifier"));
+                        } else {
+                            JSONObject details = fileResult.optJSONObject("fileDetails");
+                            JSONObject dataFile = (details == null) ? null : details.optJSONObject("dataFile");
+                            if (dataFile != null) {
+                                fileIds.put(fileResult.optString("storageIdentifier"), dataFile.optLong("id", 0));
                             }
                         }
-                        println((jsonData.length() - errIds.size()) + " files successfully added from this folder");
-                        if (!errIds.isEmpty()) {
-                            println(errIds.size() + " files were not added. Please alert your Dataverse administrator:");
-                            for (Resource file : dir.listResources()) {
-                                if (!file.isDirectory()) {
-                                    String id = file.getMetadata().getString("storageIdentifier");
-                                    int i = errIds.indexOf(id);
-                                    if (i != -1) {
-                                        String msg = errArray.getJSONObject(i).getString("message");
-                                        println("File: " + file.getName() + " failed with error: " + msg);
-                                    }
-                                }
+                    }
+                    println((jsonData.length() - errIds.size()) + " files successfully added");
+                    if (!errIds.isEmpty()) {
+                        println(errIds.size() + " files were not added. Please alert your Dataverse administrator:");
+                        for (Resource file : files) {
+                            String id = file.getMetadata().getString("storageIdentifier");
+                            int i = errIds.indexOf(id);
+                            if (i != -1) {
+                                String msg = errArray.getJSONObject(i).getString("message");
+                                println("File: " + file.getAbsolutePath() + " failed with error: " + msg);
                             }
                         }
-                        retries = 0;
-                        total = 0;
-                        // For new servers, wait up to maxWaitTime for a dataset lock to expire.
-                        while (isLocked() && (total < maxWaitTime)) {
-                            TimeUnit.SECONDS.sleep(1);
-                            total = total + 1;
+                    }
+                    for (Resource file : files) {
+                        JSONObject fileMetadata = file.getMetadata();
+                        if (!errIds.contains(fileMetadata.getString("storageIdentifier"))) {
+                            JSONObject cs = fileMetadata.getJSONObject("checksum");
+                            listingAdded(fileMetadata.optString("directoryLabel", null), fileMetadata.getString("fileName"),
+                                    cs.getString("@type"), cs.getString("@value"),
+                                    fileIds.getOrDefault(fileMetadata.getString("storageIdentifier"), 0l));
                         }
-                    } else if (postStatus == 400 && oldServer) {
-                        // If the call to the lock API fails in isLocked(), oldServer will be set to
-                        // true and
-                        // all we can do for a lock is to keep retrying.
-                        // Unfortunately, the error messages are configurable, so there's no guaranteed
-                        // way to detect
-                        // locks versus other conditions (e.g. file exists), so we can test for unique
-                        // words in the default messages
-                        if ((postRes != null) && postRes.contains("lock")) {
-                            retries--;
-                        } else {
-                            println("Error response when processing files in " + dir.getAbsolutePath() + " : "
-                                    + postResponse.getStatusLine().getReasonPhrase());
-                            // A real error: e.g. This file already exists in the dataset.
-                            if (postRes != null) {
-                                println(postRes);
+                    }
+                    if (journal != null) {
+                        for (Resource file : files) {
+                            JSONObject fileMetadata = file.getMetadata();
+                            if (errIds.contains(fileMetadata.getString("storageIdentifier"))) {
+                                // Send it again next time
+                                journal.recordDiscarded(file);
+                            } else {
+                                JSONObject cs = fileMetadata.getJSONObject("checksum");
+                                journal.recordRegistered(file, cs.getString("@type"), cs.getString("@value"),
+                                        fileMetadata.getString("storageIdentifier"));
                             }
-                            // Skip
-                            retries = 0;
                         }
+                        journal.sync();
+                    }
+                    retries = 0;
+                    // For new servers, wait up to maxWaitTime for a dataset lock to expire.
+                    getLockMonitor().waitUntilUnlocked();
+                } else if (postStatus == 400 && oldServer) {
+                    // If the call to the lock API fails in isLocked(), oldServer will be set to
+                    // true and
+                    // all we can do for a lock is to keep retrying.
+                    // Unfortunately, the error messages are configurable, so there's no guaranteed
+                    // way to detect
+                    // locks versus other conditions (e.g. file exists), so we can test for unique
+                    // words in the default messages
+                    if ((postRes != null) && postRes.contains("lock")) {
+                        retries--;
                     } else {
-                        // An error and unlikely that we can recover, so report and move on.
-                        println("Error response when processing files in " + dir.getAbsolutePath() + " : "
+                        println("Error response when registering " + files.size() + " files : "
                                 + postResponse.getStatusLine().getReasonPhrase());
+                        // A real error: e.g. This file already exists in the dataset.
                         if (postRes != null) {
                             println(postRes);
                         }
+                        // Skip
                         retries = 0;
                     }
-                } catch (InterruptedException e) {
-                    println("Error waiting for Dataverse dataset lock after: " + dir.getAbsolutePath());
+                } else {
+                    // An error and unlikely that we can recover, so report and move on.
+                    println("Error response when registering " + files.size() + " files : "
+                            + postResponse.getStatusLine().getReasonPhrase());
+                    if (postRes != null) {
+                        println(postRes);
+                    }
+                    retries = 0;
+                }
+            } catch (IOException ex) {
+                retries--;
+                println("Error registering " + files.size() + " files with Dataverse : " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Add a zip bundle of files to the dataset with one /add call. Dataverse
+     * unpacks it, and the files it lists in the response are matched back to
+     * the local files by their paths.
+     */
+    void postBundle(List<ZipBundler.BundledFile> files, ZipBundler.BundleBody body) {
+        trackDatasetChange(() -> {
+            addBundle(files, body);
+            return null;
+        });
+    }
+
+    private void addBundle(List<ZipBundler.BundledFile> files, ZipBundler.BundleBody body) {
+        int retries = 5;
+        String urlString = server + "/api/datasets/:persistentId/add";
+        urlString = urlString + "?persistentId=" + datasetPID + "&key=" + apiKey;
+        httpclient = getSharedHttpClient();
+        while (retries > 0) {
+            HttpPost httppost = new HttpPost(urlString);
+            MultipartEntityBuilder meb = MultipartEntityBuilder.create();
+            meb.addPart("file", body);
+            if (noIngest) {
+                JSONObject jsonData = new JSONObject();
+                jsonData.put("tabIngest", "false");
+                meb.addTextBody("jsonData", jsonData.toString());
+            }
+            httppost.setEntity(meb.build());
+            // Don't post while another file is waiting for the dataset to be unlocked
+            getLockMonitor().waitIfLocked();
+            try (CloseableHttpResponse response = httpclient.execute(httppost, getLocalContext())) {
+                int status = response.getStatusLine().getStatusCode();
+                String res = null;
+                HttpEntity resEntity = response.getEntity();
+                if (resEntity != null) {
+                    res = EntityUtils.toString(resEntity);
+                }
+                if (status == 200) {
+                    Map<String, ZipBundler.BundledFile> byPath = new HashMap<String, ZipBundler.BundledFile>();
+                    for (ZipBundler.BundledFile bf : files) {
+                        byPath.put(bf.entryPath, bf);
+                    }
+                    JSONArray added = (new JSONObject(res)).getJSONObject("data").getJSONArray("files");
+                    for (int i = 0; i < added.length(); i++) {
+                        JSONObject fileMetadata = added.getJSONObject(i);
+                        String dirLabel = fileMetadata.optString("directoryLabel", null);
+                        String label = fileMetadata.getString("label");
+                        JSONObject dataFile = fileMetadata.getJSONObject("dataFile");
+                        JSONObject checksum = dataFile.getJSONObject("checksum");
+                        String type = checksum.getString("type");
+                        String value = checksum.getString("value");
+                        listingAdded(dirLabel, label, type, value, dataFile.optLong("id", 0));
+                        ZipBundler.BundledFile bf = byPath.remove((dirLabel == null) ? label : dirLabel + "/" + label);
+                        if (bf != null) {
+                            if (journal != null) {
+                                journal.recordRegistered(bf.file, type, value, null);
+                            }
+                            bf.dataId.complete(type + ":" + value);
+                        }
+                    }
+                    println(added.length() + " files added from " + body.getFilename() + " (" + files.size() + " files)");
+                    for (String path : byPath.keySet()) {
+                        // e.g. renamed by Dataverse because of a name clash
+                        println("File: " + path + " from " + body.getFilename() + " was not found in the dataset");
+                    }
+                    if (journal != null) {
+                        journal.sync();
+                    }
+                    retries = 0;
+                    // For new servers, wait up to maxWaitTime for a dataset lock to expire.
+                    getLockMonitor().waitUntilUnlocked();
+                } else if ((status == 409) || ((status == 400) && (res != null) && res.contains("lock"))) {
+                    // Locked - see uploadDatafile()
+                    retries--;
+                    if (!oldServer) {
+                        getLockMonitor().waitUntilUnlocked();
+                    }
+                } else {
+                    println("Error response when adding " + body.getFilename() + " (" + files.size() + " files) : "
+                            + response.getStatusLine().getReasonPhrase());
+                    if (res != null) {
+                        println(res);
+                    }
                     retries = 0;
-                } catch (IOException ex) {
-                    retries = retries--;
-                    println("Error registering files with Dataverse for : " + dir.getAbsolutePath() + " : " + ex.getMessage());
                 }
+            } catch (IOException e) {
+                println("Error sending " + body.getFilename() + " : " + e.getMessage());
+                retries--;
             }
         }
     }
@@ -697,6 +1625,10 @@ public class DVUploader extends AbstractUploader {
     protected void postProcessCollection() {
         //importRO is the only time we are using the semantic / migrate API and have to call after uploading files (to trigger dataset release)
         if (importRO) {
+            //Files waiting to be registered have to be in the dataset before it is released
+            if (registrationBatcher != null) {
+                registrationBatcher.flush();
+            }
             httpclient = getSharedHttpClient();
             // Now post data
             String urlString = server + "/api/datasets/:persistentId/actions/:releasemigrated";
@@ -759,9 +1691,21 @@ public class DVUploader extends AbstractUploader {
     @Override
     protected void postProcessDatafile(String newUri, String existingUri, String collectionId, Resource file,
             Resource dir) throws ClientProtocolException, IOException {
-        // TBD
-        // println("DVUploader does not need to post-process data files");
+        if ((plan != null) && (newUri != null)) {
+            plan.fileSent(file.length());
+            println(plan.getProgress() + getConcurrencyReport());
+        }
+    }
 
+    /**
+     * @return the current concurrency limits (with -adaptive), for progress
+     * reports
+     */
+    private String getConcurrencyReport() {
+        if (storageLimiter == null) {
+            return "";
+        }
+        return " [concurrency: storage " + storageLimiter.getLimit() + ", Dataverse API " + apiLimiter.getLimit() + "]";
     }
 
     @Override
@@ -773,6 +1717,14 @@ public class DVUploader extends AbstractUploader {
 
     @Override
     protected String uploadDatafile(Resource file, String path) {
+        if (directUpload) {
+            // The registration is tracked in registerStoredFile()
+            return sendDatafile(file, path);
+        }
+        return trackDatasetChange(() -> sendDatafile(file, path));
+    }
+
+    private String sendDatafile(Resource file, String path) {
         httpclient = getSharedHttpClient();
         String dataId = null;
         int retries = 5;
@@ -834,9 +1786,12 @@ public class DVUploader extends AbstractUploader {
                     if(!jsonData.isEmpty()) {
                             meb.addTextBody("jsonData", jsonData.toString());
                     }
+                    // The file is streamed from disk as the request is sent
                     HttpEntity reqEntity = meb.build();
                     httppost.setEntity(reqEntity);
 
+                    // Don't post while another file is waiting for the dataset to be unlocked
+                    getLockMonitor().waitIfLocked();
                     CloseableHttpResponse response = httpclient.execute(httppost, getLocalContext());
                     try {
                         int status = response.getStatusLine().getStatusCode();
@@ -846,36 +1801,38 @@ public class DVUploader extends AbstractUploader {
                             res = EntityUtils.toString(resEntity);
                         }
                         if (status == 200) {
-                            JSONObject checksum = (new JSONObject(res)).getJSONObject("data").getJSONArray("files")
-                                    .getJSONObject(0).getJSONObject("dataFile").getJSONObject("checksum");
+                            JSONObject dataFile = (new JSONObject(res)).getJSONObject("data").getJSONArray("files")
+                                    .getJSONObject(0).getJSONObject("dataFile");
+                            JSONObject checksum = dataFile.getJSONObject("checksum");
                             dataId = checksum.getString("type") + ":" + checksum.getString("value");
+                            if (journal != null) {
+                                journal.recordRegistered(file, checksum.getString("type"), checksum.getString("value"), null);
+                            }
+                            listingAdded(goodParentPath.isEmpty() ? null : goodParentPath, goodFileName,
+                                    checksum.getString("type"), checksum.getString("value"), dataFile.optLong("id", 0));
                             retries = 0;
-                            int total = 0;
                             // For new servers, wait up to maxWaitTime for a dataset lock to expire.
-                            while (isLocked() && (total < maxWaitTime)) {
-                                TimeUnit.SECONDS.sleep(1);
-                                total = total + 1;
+                            getLockMonitor().waitUntilUnlocked();
+                        } else if ((status == 409) || ((status == 400) && (res != null) && res.contains("lock"))) {
+                            // Locked, most likely by a file another thread just posted. The error messages
+                            // are configurable, so there's no guaranteed way to detect locks versus other
+                            // conditions (e.g. file exists), so we test for a unique word in the default
+                            // messages. Wait for the lock along with everything else, then try again.
+                            // (If the call to the lock API fails in isLocked(), oldServer will be set to
+                            // true and all we can do for a lock is to keep retrying.)
+                            retries--;
+                            if (!oldServer) {
+                                getLockMonitor().waitUntilUnlocked();
                             }
-                        } else if (status == 400 && oldServer) {
-                            // If the call to the lock API fails in isLocked(), oldServer will be set to
-                            // true and
-                            // all we can do for a lock is to keep retrying.
-                            // Unfortunately, the error messages are configurable, so there's no guaranteed
-                            // way to detect
-                            // locks versus other conditions (e.g. file exists), so we can test for unique
-                            // words in the default messages
-                            if ((res != null) && res.contains("lock")) {
-                                retries--;
-                            } else {
-                                println("Error response when processing " + file.getAbsolutePath() + " : "
-                                        + response.getStatusLine().getReasonPhrase());
-                                // A real error: e.g. This file already exists in the dataset.
-                                if (res != null) {
-                                    println(res);
-                                }
-                                // Skip
-                                retries = 0;
+                        } else if (status == 400) {
+                            println("Error response when processing " + file.getAbsolutePath() + " : "
+                                    + response.getStatusLine().getReasonPhrase());
+                            // A real error: e.g. This file already exists in the dataset.
+                            if (res != null) {
+                                println(res);
                             }
+                            // Skip
+                            retries = 0;
                         } else {
                             // An error and unlikely that we can recover, so report and move on.
                             println("Error response when processing " + file.getAbsolutePath() + " : "
@@ -885,9 +1842,6 @@ public class DVUploader extends AbstractUploader {
                             }
                             retries = 0;
                         }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                        retries = 0;
                     } finally {
                         EntityUtils.consumeQuietly(response.getEntity());
                     }
@@ -902,6 +1856,121 @@ public class DVUploader extends AbstractUploader {
 
     }
 
+    /**
+     * With -replace, send the new version of a file that the plan found has
+     * changed (by direct upload unless -uploadviaserver is set) and replace
+     * the file in the dataset with it.
+     */
+    @Override
+    protected String replaceDatafile(Resource file, String path, String existingUri) {
+        if (!replaceChanged || (plan == null) || file.isDirectory()) {
+            return null;
+        }
+        String sourcepath = getGoodSourcePath(path.substring(1, path.lastIndexOf("/") + 1), file.getName());
+        if (plan.getCategory(sourcepath) != SyncPlan.Category.CHANGED) {
+            return null;
+        }
+        long fileId = existingItems.getFileId(sourcepath);
+        if (fileId <= 0) {
+            println("Unable to replace " + sourcepath + " : its id in the dataset is not known");
+            return null;
+        }
+        println("Replacing file " + fileId + " (" + existingUri + ") with a new version");
+        httpclient = getSharedHttpClient();
+        int retries = 5;
+        StagedFile sf = new StagedFile(file, path);
+        if (!prepareDirectUpload(sf)) {
+            return null;
+        }
+        if (directUpload) {
+            try {
+                if (!restoreStoredFile(sf)) {
+                    storeFile(sf, retries);
+                }
+            } catch (IOException e) {
+                println("Error sending new version of " + file.getAbsolutePath() + " to storage : " + e.getMessage());
+                sf.fail();
+            }
+            if (sf.hasFailed()) {
+                println("Failure sending new version of " + file.getName() + " to storage");
+                return null;
+            }
+        }
+        return trackDatasetChange(() -> replaceFileInDataverse(sf, fileId, retries));
+    }
+
+    /**
+     * Replace a file in the dataset with one that has been sent to storage or,
+     * with -uploadviaserver, with the file itself.
+     *
+     * @return the new id of the file, or null if it wasn't replaced
+     */
+    private String replaceFileInDataverse(StagedFile sf, long fileId, int retries) {
+        Resource file = sf.file;
+        String dataId = null;
+        String urlString = server + "/api/files/" + fileId + "/replace?key=" + apiKey;
+        // Wait for any lock from earlier changes to expire
+        getLockMonitor().waitUntilUnlocked();
+        while (retries > 0) {
+            HttpPost httppost = new HttpPost(urlString);
+            MultipartEntityBuilder meb = MultipartEntityBuilder.create();
+            JSONObject jsonData;
+            if (directUpload) {
+                jsonData = getFileMetadata(sf);
+            } else {
+                meb.addPart("file", ((FileResource) file).getContentBody(sf.goodFileName));
+                jsonData = new JSONObject();
+                if (recurse && !sf.goodParentPath.isEmpty()) {
+                    jsonData.put("directoryLabel", sf.goodParentPath);
+                }
+                if (noIngest) {
+                    jsonData.put("tabIngest", "false");
+                }
+            }
+            // The new version's content type may differ from the old one's
+            jsonData.put("forceReplace", true);
+            meb.addTextBody("jsonData", jsonData.toString());
+            httppost.setEntity(meb.build());
+            try (CloseableHttpResponse response = httpclient.execute(httppost, getLocalContext())) {
+                int status = response.getStatusLine().getStatusCode();
+                String res = null;
+                HttpEntity resEntity = response.getEntity();
+                if (resEntity != null) {
+                    res = EntityUtils.toString(resEntity);
+                }
+                if (status == 200) {
+                    JSONObject dataFile = (new JSONObject(res)).getJSONObject("data").getJSONArray("files")
+                            .getJSONObject(0).getJSONObject("dataFile");
+                    JSONObject checksum = dataFile.getJSONObject("checksum");
+                    dataId = checksum.getString("type") + ":" + checksum.getString("value");
+                    if (journal != null) {
+                        journal.recordRegistered(file, checksum.getString("type"), checksum.getString("value"), sf.storageIdentifier);
+                    }
+                    listingAdded(sf.goodParentPath.isEmpty() ? null : sf.goodParentPath, sf.goodFileName,
+                            checksum.getString("type"), checksum.getString("value"), dataFile.optLong("id", 0));
+                    retries = 0;
+                    // For new servers, wait up to maxWaitTime for a dataset lock to expire.
+                    getLockMonitor().waitUntilUnlocked();
+                } else if (status == 400 && oldServer && (res != null) && res.contains("lock")) {
+                    // See registerFiles() - all we can do for a lock on an old server is retry
+                    retries--;
+                } else {
+                    // An error and unlikely that we can recover, so report and move on.
+                    println("Error response when replacing " + file.getAbsolutePath() + " : "
+                            + response.getStatusLine().getReasonPhrase());
+                    if (res != null) {
+                        println(res);
+                    }
+                    retries = 0;
+                }
+            } catch (IOException e) {
+                println("Error replacing " + file.getAbsolutePath() + " : " + e.getMessage());
+                retries--;
+            }
+        }
+        return dataId;
+    }
+
     private boolean isLocked() {
         httpclient = getSharedHttpClient();
         try {
@@ -915,11 +1984,7 @@ public class DVUploader extends AbstractUploader {
                     HttpEntity resEntity = response.getEntity();
                     if (resEntity != null) {
                         String res = EntityUtils.toString(resEntity);
-                        boolean locked = (new JSONObject(res)).getJSONArray("data").length() > 0;
-                        if (locked) {
-                            println("Dataset locked - waiting...");
-                        }
-                        return locked;
+                        return (new JSONObject(res)).getJSONArray("data").length() > 0;
                     }
                 } else {
                     oldServer = true;
@@ -938,48 +2003,133 @@ public class DVUploader extends AbstractUploader {
     }
 
     private String multipartDirectFileUpload(Resource file, String path, int retries) throws IOException {
-        String dataId = null;
-        String goodFileName = file.getName();
+        StagedFile sf = new StagedFile(file, path);
+        if (!prepareDirectUpload(sf)) {
+            return null;
+        }
+        if (!restoreStoredFile(sf)) {
+            storeFile(sf, retries);
+        }
+        if (!sf.hasFailed()) {
+            registerStoredFile(sf, retries);
+        }
+        return sf.dataId;
+    }
+
+    /**
+     * Work out the file name and directoryLabel Dataverse will accept for this
+     * file.
+     *
+     * @return false if the file has to be skipped
+     */
+    boolean prepareDirectUpload(StagedFile sf) {
+        Resource file = sf.file;
+        sf.goodFileName = file.getName();
         boolean badChars = !file.getName().matches(GOOD_NAME);
         if(badChars) {
             if(fixNames) {
-                goodFileName =file.getName().replaceAll(BAD_NAME_CHARS, "_");
+                sf.goodFileName =file.getName().replaceAll(BAD_NAME_CHARS, "_");
             } else {
                 println("Skipping file: " + file.getName() + " due to invalid characters in the name [/:*?|;#");
-                return dataId;
+                sf.fail();
+                return false;
             }
        }
-        String goodParentPath = "";
+        sf.goodParentPath = "";
         if (recurse) {
-            goodParentPath = getParentPath(path);
-            if (!goodParentPath.isEmpty()) {
-                if (!goodParentPath.matches(GOOD_PATH)) {
+            sf.goodParentPath = getParentPath(sf.path);
+            if (!sf.goodParentPath.isEmpty()) {
+                if (!sf.goodParentPath.matches(GOOD_PATH)) {
                     if (fixNames) {
-                        goodParentPath = goodParentPath.replaceAll(BAD_PATH_CHARS, "_");
+                        sf.goodParentPath = sf.goodParentPath.replaceAll(BAD_PATH_CHARS, "_");
                     } else {
-                        println("Skipping file: " + file.getName() + " due to invalid characters in the path: " + goodParentPath + " -can only contain letters, numbers, _-.\\/ or spaces");
+                        println("Skipping file: " + file.getName() + " due to invalid characters in the path: " + sf.goodParentPath + " -can only contain letters, numbers, _-.\\/ or spaces");
                     }
                 }
             }
         }
+        return true;
+    }
 
-        while (retries > 0) {        
-        // Start multipart upload with a call to Dataverse. It will make a call to S3 to start the multipart upload and will return a set of presigned Urls for us to upload the parts
-        String urlString = server + "/api/datasets/:persistentId/uploadurls";
-        urlString = urlString + "?persistentId=doi:" + datasetPID.substring(4) + "&key=" + apiKey + "&size=" + file.length();
-        HttpGet httpget = new HttpGet(urlString);
-        CloseableHttpResponse response = httpclient.execute(httpget, getLocalContext());
-            try {
-                int status = response.getStatusLine().getStatusCode();
+    /**
+     * Check the upload journal for a copy of this file that was sent to storage
+     * in an earlier run but never registered.
+     *
+     * @return true if the storageIdentifier and checksum of the stored copy have
+     * been set
+     */
+    boolean restoreStoredFile(StagedFile sf) {
+        if (journal != null) {
+            UploadJournal.Entry e = journal.get(sf.file);
+            if ((e != null) && e.isStored() && fixityAlgorithm.equals(e.algorithm)) {
+                sf.storageIdentifier = e.storageIdentifier;
+                sf.checksum = e.checksum;
+                println("Already sent to storage as " + sf.storageIdentifier + " - registering it with Dataverse");
+                return true;
+            }
+        }
+        return false;
+    }
 
-                String jsonResponse = null;
+    /**
+     * Calculate the fixity checksum of the file before it is sent to storage.
+     */
+    void digestFile(StagedFile sf) {
+        sf.checksum = sf.file.getHash(fixityAlgorithm);
+        if (sf.checksum == null) {
+            println("Unable to calculate the " + fixityAlgorithm + " checksum for: " + sf.file.getAbsolutePath());
+            sf.fail();
+        }
+    }
+
+    /**
+     * Send the file's bytes to the dataset's storage. If the fixity checksum is
+     * not yet known, it is calculated while the file is sent. On success the
+     * storageIdentifier and checksum are set, otherwise the StagedFile is marked
+     * as failed.
+     */
+    void storeFile(StagedFile sf, int retries) throws IOException {
+        Resource file = sf.file;
+        httpclient = getSharedHttpClient();
+        ChecksumCache checksumCache = FileResource.getChecksumCache();
+        boolean calculatedChecksum = false;
+        if ((sf.checksum == null) && (checksumCache != null)) {
+            sf.checksum = checksumCache.get(file, fixityAlgorithm);
+        }
+        MultipartUpload resumedUpload = (journal == null) ? null : journal.getMultipartUpload(file);
+        if (resumedUpload != null) {
+            int stored = resumedUpload.getPartCount() - resumedUpload.getMissingParts().size();
+            println("Resuming upload of " + file.getAbsolutePath() + ": " + stored + " of " + resumedUpload.getPartCount() + " parts already stored");
+            try {
+                if (storeParts(sf, resumedUpload, true)) {
+                    retries = 0;
+                }
+            } catch (IOException e) {
+                println("Error resuming upload of " + file.getAbsolutePath() + " : " + e.getMessage());
+                retries = 0;
+            }
+        }
+        while (retries > 0) {        
+        JSONObject uploadResponse = (urlPrefetcher == null) ? null : urlPrefetcher.take(file);
+        int status = 200;
+        if (uploadResponse == null) {
+            // Start multipart upload with a call to Dataverse. It will make a call to S3 to start the multipart upload and will return a set of presigned Urls for us to upload the parts
+            String urlString = server + "/api/datasets/:persistentId/uploadurls";
+            urlString = urlString + "?persistentId=doi:" + datasetPID.substring(4) + "&key=" + apiKey + "&size=" + file.length();
+            HttpGet httpget = new HttpGet(urlString);
+            try (CloseableHttpResponse response = httpclient.execute(httpget, getLocalContext())) {
+                status = response.getStatusLine().getStatusCode();
                 HttpEntity resEntity = response.getEntity();
                 if (resEntity != null) {
-                    jsonResponse = EntityUtils.toString(resEntity);
+                    String jsonResponse = EntityUtils.toString(resEntity);
+                    if (status == 200) {
+                        uploadResponse = (new JSONObject(jsonResponse)).getJSONObject("data");
+                    }
                 }
-                if (status == 200) {
-                    //println(jsonResponse);
-                    JSONObject uploadResponse = (new JSONObject(jsonResponse)).getJSONObject("data");
+            }
+        }
+            try {
+                if ((status == 200) && (uploadResponse != null)) {
                     //Along with the parts, which should be listed numerically, we get convenience URLs to call on Dataverse to abort or complete the multipart upload
                     //backwards compat in testing
                     long maxPartSize = 5 * 1024 * 1024l;
@@ -996,10 +2146,20 @@ public class DVUploader extends AbstractUploader {
                         HttpPut httpput = new HttpPut(uploadUrl.replace("%3B",";"));
 
                         httpput.addHeader("x-amz-tagging", "dv-state=temp");
+                        // Counts against the same limit as the parts being sent
+                        TransferScheduler scheduler = getTransferScheduler();
+                        try {
+                            scheduler.acquireBytes(file.length());
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while waiting to send " + file.getAbsolutePath());
+                        }
                         try {
                             MessageDigest messageDigest = MessageDigest.getInstance(fixityAlgorithm);
 
                             try (InputStream inStream = file.getInputStream(); DigestInputStream digestInputStream = new DigestInputStream(inStream, messageDigest)) {
+                                // Skip the digest work if the checksum was calculated in an earlier step
+                                digestInputStream.on(sf.checksum == null);
                                 // This is hte new form for requests - keeping the example but won't update until we can change all
                                 //HttpUriRequest httpput = RequestBuilder.put()
                                 //    .setUri(uploadUrl)
@@ -1016,41 +2176,15 @@ public class DVUploader extends AbstractUploader {
                                         putRes = EntityUtils.toString(putEntity);
                                     }
                                     if (putStatus == 200) {
-                                        String localchecksum = Hex.encodeHexString(digestInputStream.getMessageDigest().digest());
-                                        if (singleFile) {
-                                            dataId = registerFileWithDataverse(file, path, storageIdentifier, localchecksum, retries);
-                                        } else {
-                                            JSONObject jsonData = new JSONObject();
-                                            jsonData.put("storageIdentifier", storageIdentifier);
-                                            jsonData.put("fileName", goodFileName);
-                                            jsonData.put("mimeType", file.getMimeType());
-                                            JSONObject inputChecksumObject = new JSONObject();
-                                            inputChecksumObject.put("@type", fixityAlgorithm);
-                                            inputChecksumObject.put("@value", localchecksum);
-                                            jsonData.put("checksum", inputChecksumObject);
-                                            jsonData.put("fileSize", file.length());
-                                            //Ingest only affects tabular files, but we can send it with all files
-                                            if(noIngest) {
-                                                jsonData.put("tabIngest", "false");
-                                            }
-                                            if (recurse) {
-                                                // Dataverse takes paths without an initial / and ending without a /
-                                                // with the path not including the file name
-                                                if (path.substring(1).contains("/")) {
-                                                    String parentPath = path.substring(1, path.lastIndexOf("/"));
-                                                    if (!parentPath.isEmpty()) {
-                                                        jsonData = jsonData.put("directoryLabel", parentPath);
-                                                    }
-                                                }
-                                            }
-                                            file.setMetadata(jsonData);
-                                            dataId = fixityAlgorithm + ":" + localchecksum;
-                                        }
-                                        if (dataId != null) {
-                                            retries = 0;
-                                        } else {
-                                            println("Failure registering " + file.getName() + " with Dataverse");
+                                        if (sf.checksum == null) {
+                                            sf.checksum = Hex.encodeHexString(digestInputStream.getMessageDigest().digest());
+                                            calculatedChecksum = true;
                                         }
+                                        sf.storageIdentifier = storageIdentifier;
+                                        retries = 0;
+                                    } else {
+                                        println("Upload of " + file.getAbsolutePath() + " failed with status: " + putStatus);
+                                        retries--;
                                     }
                                 } catch (IOException e) {
                                     e.printStackTrace(System.out);
@@ -1061,137 +2195,17 @@ public class DVUploader extends AbstractUploader {
 
                         } catch (NoSuchAlgorithmException nsae) {
                             println("Fixity algorithm not found: " + nsae.getMessage());
+                            retries = 0;
+                        } finally {
+                            scheduler.releaseBytes(file.length());
                         }
                     } else {
-
-                        String abortUrl = uploadResponse.getString("abort");
-                        String completeUrl = uploadResponse.getString("complete");
-                        JSONObject uploadUrls = uploadResponse.getJSONObject("urls");
-
-                        //And we're sent the storageIdentifier - not strictly needed since the storageIdentifier is already in all the URLS where it's needed.
-                        String storageIdentifier = uploadResponse.getString("storageIdentifier");
-
-                        //Queue up all parts so that each part can be uploaded via a different thread.
-                        //Using httpConcurrency number of threads to match the number of open HTTP calls to the S3 server that we're allowed in the HttpClient pool
-                        ExecutorService executor = Executors.newFixedThreadPool(httpConcurrency);
-
-                        //Give the HttpPartUploadJob class the common info it needs to send parts to S3
-                        HttpPartUploadJob.setHttpClient(getSharedHttpClient());
-                        HttpPartUploadJob.setHttpClientContext(getLocalContext());
-                        HttpPartUploadJob.setPartSize(maxPartSize);
-
-                        //Create a map to store the eTags from the parts and the fixityAlg calculated for the whole file
-                        Map<String, String> mpUploadInfoMap = new HashMap<String, String>(uploadUrls.length() + 1);
-                        //Setup a job to calculate the fixityAlg hash of the file
-                        //Probably helpful to have it run in parallel, but it could be a pre or post step as well. If the network is fast relative to disk, we may want the executor to use one extra thread for this
-                        DigestJob mjob = new DigestJob(file, mpUploadInfoMap, fixityAlgorithm);
-                        executor.execute(mjob);
-
-                        //Now set up upload jobs for each part
-                        int i = 1;
-                        long remainingSize = file.length();
-                        while (uploadUrls.has(Integer.toString(i))) {
-                            //Calculate part size
-                            long partSize = maxPartSize;
-                            if (remainingSize < maxPartSize) {
-                                partSize = remainingSize;
-                            }
-                            remainingSize -= partSize;
-                            println("Creating job for " + partSize + " bytes");
-                            /*The .replace("%3B",";") in the next line is a work-around for Dell's Isolon storage S3 implementation which can't handle the endcoded char
-                              in the X-Amz-SignedHeaders param. Currently this is the only place the encoded ; is present and we've confirmed that unencoding also works with Amazon's S3 stores.
-                              If there are ever issues, we could create a -dell flag, only apply this to the specific param involved, etc. to drop this work-around when not needed.
-                            */
-                            HttpPartUploadJob uj = new HttpPartUploadJob(i, uploadUrls.getString(Integer.toString(i)).replace("%3B",";"), file, partSize, mpUploadInfoMap);
-
-                            executor.execute(uj);
-                            i++;
-                        }
-                        float total = (float) (i - 1);
-                        println("All " + total + " parts for: " + storageIdentifier + " queued.");
-                        //Tell the executor that there are no more jobs coming
-                        executor.shutdown();
-                        //And wait until it finishes the ones that are running
-                        try {
-                            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
-                                printStatus(mpUploadInfoMap.size() / total);
-                            }
-                        } catch (InterruptedException e) {
-                            println("Upload of " + storageIdentifier + " interrupted: " + e.getMessage());
-                            //Call abort?
-                        }
-                        boolean fileUploadComplete = true;
-
-                        for (String part : (Set<String>) uploadUrls.keySet()) {
-                            if (!mpUploadInfoMap.containsKey(part)) {
-                                fileUploadComplete = false;
-                                break;
-                            }
-                        }
-                        //Technically, the uploads to S3 could succeed and only the fixityAlg fails, but in this case we still want to abort the MP Upload, not complete it.
-                        if (!mpUploadInfoMap.containsKey(fixityAlgorithm)) {
-                            fileUploadComplete = false;
-                        }
-                        if (fileUploadComplete) {
-                            println("Part uploads Completed for " + storageIdentifier);
-                            HttpPut completeUpload = new HttpPut(server + completeUrl + "&key=" + apiKey);
-                            JSONObject eTags = new JSONObject();
-                            ((Set<String>) mpUploadInfoMap.keySet()).stream().filter(partNo -> (!partNo.equals(fixityAlgorithm))).forEachOrdered(partNo -> {
-                                eTags.put(partNo, mpUploadInfoMap.get(partNo));
-                            });
-                            StringEntity body = new StringEntity(eTags.toString());
-                            println("ETags: " + eTags.toString());
-                            completeUpload.setEntity(body);
-                            completeUpload.setHeader("Content-type", "application/json");
-
-                            response = httpclient.execute(completeUpload, getLocalContext());
-                            EntityUtils.consumeQuietly(response.getEntity());
-                            status = response.getStatusLine().getStatusCode();
-                            if (status == 200) {
-                                println("Successful upload of " + file.getAbsolutePath());
-                                if (singleFile) {
-                                    dataId = registerFileWithDataverse(file, path, storageIdentifier, mpUploadInfoMap.get(fixityAlgorithm), retries);
-                                } else {
-                                    JSONObject jsonData = new JSONObject();
-                                    jsonData.put("storageIdentifier", storageIdentifier);
-                                    jsonData.put("fileName", file.getName());
-                                    jsonData.put("mimeType", file.getMimeType());
-                                    JSONObject inputChecksumObject = new JSONObject();
-                                    inputChecksumObject.put("@type", fixityAlgorithm);
-                                    inputChecksumObject.put("@value", mpUploadInfoMap.get(fixityAlgorithm));
-                                    jsonData.put("checksum", inputChecksumObject);
-                                    jsonData.put("fileSize", file.length());
-                                    if(noIngest) {
-                                        jsonData.put("tabIngest", "false");
-                                    }
-
-                                    if (recurse) {
-                                        if (!goodParentPath.isEmpty()) {
-                                            jsonData = jsonData.put("directoryLabel", goodParentPath);
-                                        }
-                                    }
-                                    file.setMetadata(jsonData);
-                                    dataId = fixityAlgorithm + ":" + mpUploadInfoMap.get(fixityAlgorithm);
-                                }
-                            } else {
-                                println("Partial upload of " + file.getAbsolutePath() + ", complete upload failed with status: " + status);
-                            }
-
-                            retries = 0;
-                        } else {
-                            HttpDelete delete = new HttpDelete(server + abortUrl + "&key=" + apiKey);
-                            response = httpclient.execute(delete, getLocalContext());
-                            EntityUtils.consumeQuietly(response.getEntity());
-                            status = response.getStatusLine().getStatusCode();
-                            if (status != 204) {
-                                println("Call to " + abortUrl + " failed with status: " + status);
-                                retries = 0;
-                            } else {
-                                println("Upload of " + file.getAbsolutePath() + " failed and upload request successfully aborted.");
-                                println("Upload of large files is not automatically retried - run again to retry this file upload.");
-                                retries = 0;
-                            }
+                        MultipartUpload upload = new MultipartUpload(file, uploadResponse, maxPartSize, journal);
+                        if (journal != null) {
+                            journal.recordMultipart(upload);
                         }
+                        storeParts(sf, upload, false);
+                        retries = 0;
                     }
                 } else {
                     println("Retrying request for file upload URL(s): return status was : " + status);
@@ -1208,8 +2222,249 @@ public class DVUploader extends AbstractUploader {
                 retries = 0;
             }
         }
-        return dataId;
+        if (sf.storageIdentifier == null) {
+            sf.fail();
+        } else {
+            if (calculatedChecksum && (checksumCache != null)) {
+                checksumCache.put(file, fixityAlgorithm, sf.checksum);
+            }
+            if (journal != null) {
+                journal.recordStored(file, fixityAlgorithm, sf.checksum, sf.storageIdentifier);
+            }
+        }
+    }
+
+    /**
+     * Ask Dataverse for the URL(s) to send a file to storage.
+     *
+     * @return the data from the response, or null if the request failed
+     */
+    JSONObject requestUploadUrls(Resource file) {
+        String urlString = server + "/api/datasets/:persistentId/uploadurls";
+        urlString = urlString + "?persistentId=doi:" + datasetPID.substring(4) + "&key=" + apiKey + "&size=" + file.length();
+        HttpGet httpget = new HttpGet(urlString);
+        try (CloseableHttpResponse response = getSharedHttpClient().execute(httpget, getLocalContext())) {
+            String jsonResponse = EntityUtils.toString(response.getEntity());
+            if (response.getStatusLine().getStatusCode() == 200) {
+                return (new JSONObject(jsonResponse)).getJSONObject("data");
+            }
+        } catch (IOException e) {
+            println("Error requesting upload URLs for " + file.getAbsolutePath() + " : " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Abort a multipart upload that won't be completed.
+     */
+    void abortUpload(String abortUrl) {
+        HttpDelete delete = new HttpDelete(server + abortUrl + "&key=" + apiKey);
+        try (CloseableHttpResponse response = getSharedHttpClient().execute(delete, getLocalContext())) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            if (response.getStatusLine().getStatusCode() != 204) {
+                println("Call to " + abortUrl + " failed with status: " + response.getStatusLine().getStatusCode());
+            }
+        } catch (IOException e) {
+            println("Error calling " + abortUrl + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send the parts of a multipart upload that aren't stored yet, giving any
+     * that fail a second chance, and then complete the upload. If the fixity
+     * checksum isn't known, it is calculated from the bytes sent.
+     *
+     * If parts still can't be sent, the upload is kept in the journal (if there
+     * is one) for a later run to continue, unless storage has rejected its
+     * URLs, in which case it is aborted.
+     *
+     * @param resumed - whether this upload was started by an earlier run
+     * @return false if a resumed upload had to be aborted and a new upload
+     * should be started
+     */
+    private boolean storeParts(StagedFile sf, MultipartUpload upload, boolean resumed) throws IOException {
+        Resource file = sf.file;
+        String checksum = sf.checksum;
+        OrderedDigest partDigest = null;
+        CompletableFuture<Void> digestJob = null;
+        Map<String, String> digestResult = new ConcurrentHashMap<String, String>(1);
+        if (checksum == null) {
+            //Calculate the fixityAlg hash of the file from the bytes read to send the parts, rather than reading the file a second time
+            try {
+                partDigest = new OrderedDigest(fixityAlgorithm, file, upload.getPartCount(), upload.partSize, digestBufferSpace);
+                upload.digest = partDigest;
+                for (int i = 1; i <= upload.getPartCount(); i++) {
+                    if (upload.isStored(i)) {
+                        partDigest.markStored(i);
+                    }
+                }
+            } catch (NoSuchAlgorithmException | CloneNotSupportedException e) {
+                //Can't restart this digest if a part is retried - calculate it separately
+                digestJob = CompletableFuture.runAsync(new DigestJob(file, digestResult, fixityAlgorithm));
+            }
+        }
+
+        //Send the parts, then give any that failed another chance. The eTags of the parts already stored are kept.
+        List<Integer> parts = upload.getMissingParts();
+        try {
+            for (int pass = 1; (pass <= PART_UPLOAD_PASSES) && !parts.isEmpty() && !upload.urlsRejected; pass++) {
+                if (pass > 1) {
+                    println("Retrying " + parts.size() + " failed part(s) of " + upload.storageIdentifier);
+                }
+                uploadParts(upload, parts);
+                parts = upload.getMissingParts();
+            }
+        } catch (RuntimeException e) {
+            if (partDigest != null) {
+                // Give back the buffer space getChecksum() would have
+                partDigest.release();
+            }
+            throw e;
+        }
+        if (checksum == null) {
+            if (partDigest != null) {
+                checksum = partDigest.getChecksum();
+                if (checksum == null) {
+                    //Not all parts made it into the digest - read the file again
+                    println("Calculating " + fixityAlgorithm + " of " + file.getAbsolutePath() + " separately");
+                    checksum = file.getHash(fixityAlgorithm);
+                } else if (FileResource.getChecksumCache() != null) {
+                    FileResource.getChecksumCache().put(file, fixityAlgorithm, checksum);
+                }
+            } else {
+                digestJob.join();
+                checksum = digestResult.get(fixityAlgorithm);
+            }
+        }
+        //Technically, the uploads to S3 could succeed and only the fixityAlg fails, but in this case we still want to abort the MP Upload, not complete it.
+        if (parts.isEmpty() && (checksum != null)) {
+            println("Part uploads Completed for " + upload.storageIdentifier);
+            HttpPut completeUpload = new HttpPut(server + upload.completeUrl + "&key=" + apiKey);
+            JSONObject eTags = upload.getETags();
+            StringEntity body = new StringEntity(eTags.toString());
+            println("ETags: " + eTags.toString());
+            completeUpload.setEntity(body);
+            completeUpload.setHeader("Content-type", "application/json");
+
+            CloseableHttpResponse response = httpclient.execute(completeUpload, getLocalContext());
+            EntityUtils.consumeQuietly(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 200) {
+                println("Successful upload of " + file.getAbsolutePath());
+                sf.storageIdentifier = upload.storageIdentifier;
+                sf.checksum = checksum;
+            } else {
+                println("Partial upload of " + file.getAbsolutePath() + ", complete upload failed with status: " + status);
+            }
+            return true;
+        }
+        if ((journal != null) && (checksum != null) && !upload.urlsRejected) {
+            println("Upload of " + file.getAbsolutePath() + " is incomplete: " + parts.size() + " part(s) could not be sent. Run again to resume it.");
+            return true;
+        }
+        abortUpload(upload.abortUrl);
+        println("Upload of " + file.getAbsolutePath() + " failed and the upload request was aborted.");
+        if (journal != null) {
+            journal.recordAbandoned(file);
+        }
+        if (resumed) {
+            println("Starting a new upload of " + file.getAbsolutePath());
+            return false;
+        }
+        println("Some parts could not be sent after " + PART_UPLOAD_PASSES + " passes - run again to retry this file upload.");
+        return true;
+    }
+
+    /**
+     * Send the given parts of a multipart upload through the shared
+     * TransferScheduler and wait for them to finish.
+     */
+    private void uploadParts(MultipartUpload upload, List<Integer> parts) {
+        TransferScheduler scheduler = getTransferScheduler();
+        List<CompletableFuture<Void>> partJobs = new ArrayList<CompletableFuture<Void>>(parts.size());
+        for (int i : parts) {
+            partJobs.add(scheduler.submit(upload, i));
+        }
+        float total = (float) upload.getPartCount();
+        println("All " + parts.size() + " parts for: " + upload.storageIdentifier + " queued.");
+        CompletableFuture<Void> allParts = CompletableFuture.allOf(partJobs.toArray(new CompletableFuture<?>[partJobs.size()]));
+        while (true) {
+            try {
+                allParts.get(10, TimeUnit.SECONDS);
+                break;
+            } catch (TimeoutException e) {
+                printStatus(upload.eTags.size() / total);
+            } catch (ExecutionException e) {
+                //A part job failed unexpectedly - the part will be missing
+                println("Error uploading part of " + upload.storageIdentifier + " : " + e.getCause().getMessage());
+                break;
+            } catch (InterruptedException e) {
+                println("Upload of " + upload.storageIdentifier + " interrupted: " + e.getMessage());
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
     }
+
+    /**
+     * @return the scheduler for part uploads, shared by all files in this run
+     */
+    synchronized TransferScheduler getTransferScheduler() {
+        if (transferScheduler == null) {
+            // With -adaptive, the storage limiter decides how many of the threads are sending at once
+            transferScheduler = new TransferScheduler(getSharedHttpClient(), adaptive ? maxStorageConcurrency : httpConcurrency, maxBytesInFlight);
+        }
+        return transferScheduler;
+    }
+
+    /**
+     * Register a file that is already in storage with Dataverse. With
+     * -singlefile, the file is added right away, otherwise its metadata is
+     * recorded so that it can be added along with the rest of its directory.
+     */
+    void registerStoredFile(StagedFile sf, int retries) {
+        if (singleFile) {
+            sf.dataId = trackDatasetChange(() -> registerFileWithDataverse(sf, retries));
+            if ((sf.dataId != null) && (journal != null)) {
+                journal.recordRegistered(sf.file, fixityAlgorithm, sf.checksum, sf.storageIdentifier);
+            }
+            if (sf.dataId != null) {
+                listingAdded(sf.goodParentPath.isEmpty() ? null : sf.goodParentPath, sf.goodFileName, fixityAlgorithm, sf.checksum, sf.fileId);
+            }
+        } else {
+            sf.file.setMetadata(getFileMetadata(sf));
+            sf.dataId = fixityAlgorithm + ":" + sf.checksum;
+        }
+        if (sf.dataId == null) {
+            println("Failure registering " + sf.file.getName() + " with Dataverse");
+            sf.fail();
+        }
+    }
+
+    private JSONObject getFileMetadata(StagedFile sf) {
+        JSONObject jsonData = new JSONObject();
+        jsonData.put("storageIdentifier", sf.storageIdentifier);
+        jsonData.put("fileName", sf.goodFileName);
+        jsonData.put("mimeType", sf.file.getMimeType());
+        JSONObject inputChecksumObject = new JSONObject();
+        inputChecksumObject.put("@type", fixityAlgorithm);
+        inputChecksumObject.put("@value", sf.checksum);
+        jsonData.put("checksum", inputChecksumObject);
+        jsonData.put("fileSize", sf.file.length());
+        //Ingest only affects tabular files, but we can send it with all files
+        if(noIngest) {
+            jsonData.put("tabIngest", "false");
+        }
+        if (recurse) {
+            // Dataverse takes paths without an initial / and ending without a /
+            // with the path not including the file name
+            if (!sf.goodParentPath.isEmpty()) {
+                jsonData.put("directoryLabel", sf.goodParentPath);
+            }
+        }
+        return jsonData;
+    }
+
     //Matching Dataverse's validation from
     //FileDirectoryNameValidator
     private static final String BAD_PATH_CHARS = "[^\\w\\\\/. -]";
@@ -1218,7 +2473,8 @@ public class DVUploader extends AbstractUploader {
     private static final String GOOD_NAME = "[^:<>;#/\"\\*\\|\\?\\\\]+";
     private static final String BAD_NAME_CHARS = "[:<>;#/\"\\*\\|\\?\\\\]";
 
-    private String registerFileWithDataverse(Resource file, String path, String storageIdentifier, String checksum, int retries) {
+    private String registerFileWithDataverse(StagedFile sf, int retries) {
+        Resource file = sf.file;
         String dataId = null;
         // Now post data
         String urlString = server + "/api/datasets/:persistentId/add";
@@ -1229,29 +2485,7 @@ public class DVUploader extends AbstractUploader {
             // ContentBody bin = file.getContentBody();
             MultipartEntityBuilder meb = MultipartEntityBuilder.create();
 
-            JSONObject jsonData = new JSONObject();
-            jsonData.put("storageIdentifier", storageIdentifier);
-            jsonData.put("fileName", file.getName());
-            jsonData.put("mimeType", file.getMimeType());
-            JSONObject inputChecksumObject = new JSONObject();
-            inputChecksumObject.put("@type", fixityAlgorithm);
-            inputChecksumObject.put("@value", checksum);
-            jsonData.put("checksum", inputChecksumObject);
-            jsonData.put("fileSize", file.length());
-            if(noIngest) {
-                jsonData.put("tabIngest", "false");
-            }
-
-            if (recurse) {
-                // Dataverse takes paths without an initial / and ending without a /
-                // with the path not including the file name
-                if (path.substring(1).contains("/")) {
-                    String parentPath = path.substring(1, path.lastIndexOf("/"));
-                    if (!parentPath.isEmpty()) {
-                        jsonData = jsonData.put("directoryLabel", parentPath);
-                    }
-                }
-            }
+            JSONObject jsonData = getFileMetadata(sf);
             meb.addTextBody("jsonData", jsonData.toString());
 
             HttpEntity reqEntity = meb.build();
@@ -1266,17 +2500,14 @@ public class DVUploader extends AbstractUploader {
                     postRes = EntityUtils.toString(postEntity);
                 }
                 if (postStatus == 200) {
-                    JSONObject checksumObject = (new JSONObject(postRes)).getJSONObject("data")
-                            .getJSONArray("files").getJSONObject(0).getJSONObject("dataFile")
-                            .getJSONObject("checksum");
+                    JSONObject dataFile = (new JSONObject(postRes)).getJSONObject("data")
+                            .getJSONArray("files").getJSONObject(0).getJSONObject("dataFile");
+                    JSONObject checksumObject = dataFile.getJSONObject("checksum");
                     dataId = checksumObject.getString("type") + ":" + checksumObject.getString("value");
+                    sf.fileId = dataFile.optLong("id", 0);
                     retries = 0;
-                    int total = 0;
                     // For new servers, wait up to maxWaitTime for a dataset lock to expire.
-                    while (isLocked() && (total < maxWaitTime)) {
-                        TimeUnit.SECONDS.sleep(1);
-                        total = total + 1;
-                    }
+                    getLockMonitor().waitUntilUnlocked();
                 } else if (postStatus == 400 && oldServer) {
                     // If the call to the lock API fails in isLocked(), oldServer will be set to
                     // true and
@@ -1306,12 +2537,9 @@ public class DVUploader extends AbstractUploader {
                     }
                     retries = 0;
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                retries = 0;
             } catch (IOException ex) {
                 retries = 0;
-                println("Error registering file with dataverse: " + storageIdentifier + " : " + ex.getMessage());
+                println("Error registering file with dataverse: " + sf.storageIdentifier + " : " + ex.getMessage());
             }
         }
         return dataId;
@@ -1337,8 +2565,12 @@ public class DVUploader extends AbstractUploader {
         } else {
             cm = new PoolingHttpClientConnectionManager();
         }
-        cm.setDefaultMaxPerRoute(httpConcurrency);
-        cm.setMaxTotal(httpConcurrency > 20 ? httpConcurrency : 20);
+        int connections = Math.max(httpConcurrency, maxPosts);
+        if (adaptive) {
+            connections = Math.max(connections, maxStorageConcurrency + maxApiConcurrency);
+        }
+        cm.setDefaultMaxPerRoute(connections);
+        cm.setMaxTotal(connections > 20 ? connections : 20);
     }
 
 
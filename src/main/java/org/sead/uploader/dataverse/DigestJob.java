@@ -5,13 +5,8 @@
  */
 package org.sead.uploader.dataverse;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.Map;
-import org.apache.commons.codec.binary.Hex;
 import static org.sead.uploader.AbstractUploader.println;
 import org.sead.uploader.util.Resource;
 
@@ -38,22 +33,11 @@ public class DigestJob implements Runnable {
      */
     @Override
     public void run() {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance(alg);
-
-            try (InputStream inStream = file.getInputStream(); DigestInputStream digestInputStream = new DigestInputStream(inStream, messageDigest)) {
-                byte[] bytes;
-                bytes = new byte[64*1024];
-                while(digestInputStream.read(bytes) >= 0) {
-                }
-                String checksum = Hex.encodeHexString(digestInputStream.getMessageDigest().digest());
-                infoMap.put(alg, checksum);
-            } catch (IOException e) {
-                e.printStackTrace(System.out);
-                println("Error calculating digest for: " + file.getAbsolutePath() + " : " + e.getMessage());
-            }
-        } catch (NoSuchAlgorithmException nsae) {
-            println("Fixity algorithm not found: " + nsae.getMessage());
+        String checksum = file.getHashes(Collections.singleton(alg)).get(alg);
+        if (checksum != null) {
+            infoMap.put(alg, checksum);
+        } else {
+            println("Error calculating digest for: " + file.getAbsolutePath());
         }
     }
 }
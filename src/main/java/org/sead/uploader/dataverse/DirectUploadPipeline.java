@@ -0,0 +1,108 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import static org.sead.uploader.AbstractUploader.println;
+import org.sead.uploader.util.BlockingExecutor;
+import org.sead.uploader.util.Resource;
+
+/**
+ * Runs direct uploads as a set of stages - digest, storage upload and
+ * registration with Dataverse - each with its own threads, so that disk reads,
+ * transfers to storage and Dataverse API calls for different files overlap.
+ * The directory scan (the thread calling submit()) is the first stage.
+ *
+ * Each stage has a bounded queue. When a stage falls behind, the stage in front
+ * of it blocks trying to hand off more work, which in turn stops the scan from
+ * creating more pending files.
+ *
+ * @author Jim
+ */
+public class DirectUploadPipeline {
+
+    private final DVUploader uploader;
+    private final int retries;
+
+    private final BlockingExecutor digestStage;
+    private final BlockingExecutor uploadStage;
+    private final BlockingExecutor registerStage;
+
+    public DirectUploadPipeline(DVUploader uploader, int digestThreads, int uploadThreads, int registerThreads, int retries) {
+        this.uploader = uploader;
+        this.retries = retries;
+        digestStage = new BlockingExecutor("digest", digestThreads, 2 * digestThreads);
+        uploadStage = new BlockingExecutor("upload", uploadThreads, 2 * uploadThreads);
+        registerStage = new BlockingExecutor("register", registerThreads, 2 * registerThreads);
+        println("Direct upload pipeline: " + digestThreads + " digest, " + uploadThreads + " upload, " + registerThreads + " registration thread(s)");
+    }
+
+    /**
+     * Queue a file for upload, blocking while the digest stage is full.
+     *
+     * @param file - the file to upload
+     * @param path - the path of the file, including its name
+     * @return a Future for the id of the file in Dataverse (null if the upload
+     * failed)
+     */
+    public CompletableFuture<String> submit(Resource file, String path) {
+        StagedFile sf = new StagedFile(file, path);
+        if (!uploader.prepareDirectUpload(sf)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (uploader.restoreStoredFile(sf)) {
+            // Sent to storage in an earlier run - just register it
+            return CompletableFuture.supplyAsync(() -> {
+                uploader.registerStoredFile(sf, retries);
+                return sf.dataId;
+            }, registerStage);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            uploader.digestFile(sf);
+            return sf;
+        }, digestStage).thenApplyAsync(staged -> {
+            if (!staged.hasFailed()) {
+                try {
+                    uploader.storeFile(staged, retries);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+            return staged;
+        }, uploadStage).thenApplyAsync(staged -> {
+            if (!staged.hasFailed()) {
+                uploader.registerStoredFile(staged, retries);
+            }
+            return staged.dataId;
+        }, registerStage);
+    }
+
+    /**
+     * Stop accepting files and wait for the ones already queued to finish.
+     */
+    public void shutdown() {
+        for (BlockingExecutor stage : new BlockingExecutor[]{digestStage, uploadStage, registerStage}) {
+            stage.shutdown();
+            try {
+                stage.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
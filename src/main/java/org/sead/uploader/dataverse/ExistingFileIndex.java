@@ -0,0 +1,289 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files already in the dataset, by path (directoryLabel/filename), with
+ * their checksums and ids - kept compact so that datasets with hundreds of thousands
+ * of files fit in a default heap.
+ *
+ * Each directory label and checksum type is stored once and entries refer to
+ * them by number. Checksums are stored as raw bytes in one shared array (a
+ * value that isn't lower-case hex is kept as a String instead). Entries are
+ * found through an open-addressed table of the paths' hash codes, and are
+ * compared with the path being looked up in place, so a lookup doesn't
+ * allocate anything.
+ *
+ * The index is thread-safe: files can be added as pages of the listing are
+ * read concurrently, and as files are registered during the run.
+ *
+ * @author Jim
+ */
+public class ExistingFileIndex {
+
+    /**
+     * Receives the files in the index (see forEach()).
+     */
+    public interface FileVisitor {
+
+        void visit(String dirLabel, String name, String type, String value, long id) throws IOException;
+    }
+
+    private static final int NO_DIR = -1;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Shared directory labels and checksum types
+    private final List<String> dirs = new ArrayList<String>();
+    private final Map<String, Integer> dirIds = new HashMap<String, Integer>();
+    private final List<String> types = new ArrayList<String>();
+
+    // Entries, in parallel arrays
+    private int size = 0;
+    private int[] hashes = new int[16];
+    private int[] entryDirs = new int[16];
+    private String[] names = new String[16];
+    private byte[] entryTypes = new byte[16];
+    private int[] checksumOffsets = new int[16];
+    private short[] checksumLengths = new short[16];
+    private long[] fileIds = new long[16];
+    private byte[] checksums = new byte[256];
+    private int checksumsUsed = 0;
+    // Checksum values that couldn't be stored as bytes, by entry number
+    private final Map<Integer, String> otherValues = new HashMap<Integer, String>();
+
+    // Entry number + 1 for each slot, 0 if the slot is empty
+    private int[] slots = new int[32];
+
+    /**
+     * Add a file whose id isn't known.
+     */
+    public void put(String dirLabel, String name, String type, String value) {
+        put(dirLabel, name, type, value, 0);
+    }
+
+    /**
+     * Add a file, replacing any earlier entry with the same path.
+     *
+     * @param dirLabel - the file's directoryLabel, or null if it doesn't have
+     * one
+     * @param id - the file's database id in Dataverse, or 0 if it isn't known
+     */
+    public synchronized void put(String dirLabel, String name, String type, String value, long id) {
+        String path = (dirLabel == null) ? name : dirLabel + "/" + name;
+        int entry = find(path);
+        if (entry < 0) {
+            if (size == names.length) {
+                grow();
+            }
+            entry = size++;
+            hashes[entry] = path.hashCode();
+            insert(entry);
+        }
+        entryDirs[entry] = (dirLabel == null) ? NO_DIR : getDirId(dirLabel);
+        names[entry] = name;
+        entryTypes[entry] = getTypeId(type);
+        fileIds[entry] = id;
+        otherValues.remove(entry);
+        byte[] bytes = decodeHex(value);
+        if (bytes != null) {
+            if (checksumsUsed + bytes.length > checksums.length) {
+                checksums = Arrays.copyOf(checksums, Math.max(2 * checksums.length, checksumsUsed + bytes.length));
+            }
+            System.arraycopy(bytes, 0, checksums, checksumsUsed, bytes.length);
+            checksumOffsets[entry] = checksumsUsed;
+            checksumLengths[entry] = (short) bytes.length;
+            checksumsUsed += bytes.length;
+        } else {
+            checksumLengths[entry] = 0;
+            otherValues.put(entry, value);
+        }
+    }
+
+    public synchronized boolean contains(String path) {
+        return find(path) >= 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the checksum type of the file at this path, or null if there
+     * isn't one
+     */
+    public synchronized String getType(String path) {
+        int entry = find(path);
+        return (entry < 0) ? null : types.get(entryTypes[entry]);
+    }
+
+    /**
+     * @return the checksum value of the file at this path, or null if there
+     * isn't one
+     */
+    public synchronized String getValue(String path) {
+        int entry = find(path);
+        return (entry < 0) ? null : getValue(entry);
+    }
+
+    private String getValue(int entry) {
+        String other = otherValues.get(entry);
+        if (other != null) {
+            return other;
+        }
+        char[] hex = new char[2 * checksumLengths[entry]];
+        for (int i = 0; i < checksumLengths[entry]; i++) {
+            int b = checksums[checksumOffsets[entry] + i] & 0xff;
+            hex[2 * i] = HEX[b >>> 4];
+            hex[2 * i + 1] = HEX[b & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return the database id of the file at this path, or 0 if there isn't
+     * one or it isn't known
+     */
+    public synchronized long getFileId(String path) {
+        int entry = find(path);
+        return (entry < 0) ? 0 : fileIds[entry];
+    }
+
+    /**
+     * @return "type:value" for the file at this path, or null if there isn't
+     * one
+     */
+    public synchronized String getTagId(String path) {
+        return contains(path) ? getType(path) + ":" + getValue(path) : null;
+    }
+
+    /**
+     * Call the visitor for each file in the index, in the order they were
+     * added.
+     */
+    public synchronized void forEach(FileVisitor visitor) throws IOException {
+        for (int entry = 0; entry < size; entry++) {
+            String dirLabel = (entryDirs[entry] == NO_DIR) ? null : dirs.get(entryDirs[entry]);
+            visitor.visit(dirLabel, names[entry], types.get(entryTypes[entry]), getValue(entry), fileIds[entry]);
+        }
+    }
+
+    private int find(String path) {
+        int hash = path.hashCode();
+        int mask = slots.length - 1;
+        for (int i = spread(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int entry = slots[i] - 1;
+            if ((hashes[entry] == hash) && matches(entry, path)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int entry, String path) {
+        String name = names[entry];
+        if (entryDirs[entry] == NO_DIR) {
+            return path.equals(name);
+        }
+        String dir = dirs.get(entryDirs[entry]);
+        return (path.length() == dir.length() + 1 + name.length())
+                && path.startsWith(dir)
+                && (path.charAt(dir.length()) == '/')
+                && path.endsWith(name);
+    }
+
+    private void insert(int entry) {
+        int mask = slots.length - 1;
+        int i = spread(hashes[entry]) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = entry + 1;
+    }
+
+    private void grow() {
+        int capacity = 2 * names.length;
+        hashes = Arrays.copyOf(hashes, capacity);
+        entryDirs = Arrays.copyOf(entryDirs, capacity);
+        names = Arrays.copyOf(names, capacity);
+        entryTypes = Arrays.copyOf(entryTypes, capacity);
+        checksumOffsets = Arrays.copyOf(checksumOffsets, capacity);
+        checksumLengths = Arrays.copyOf(checksumLengths, capacity);
+        fileIds = Arrays.copyOf(fileIds, capacity);
+        // Keep the table at most half full
+        slots = new int[2 * capacity];
+        for (int entry = 0; entry < size; entry++) {
+            insert(entry);
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private int getDirId(String dirLabel) {
+        Integer id = dirIds.get(dirLabel);
+        if (id == null) {
+            id = dirs.size();
+            dirs.add(dirLabel);
+            dirIds.put(dirLabel, id);
+        }
+        return id;
+    }
+
+    private byte getTypeId(String type) {
+        int id = types.indexOf(type);
+        if (id < 0) {
+            id = types.size();
+            types.add(type);
+        }
+        return (byte) id;
+    }
+
+    /**
+     * @return the bytes of a lower-case hex value, or null if the value isn't
+     * one (so that it can be given back exactly as it came)
+     */
+    private static byte[] decodeHex(String value) {
+        if ((value.length() % 2 != 0) || (value.length() > 2 * Short.MAX_VALUE)) {
+            return null;
+        }
+        byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = hexDigit(value.charAt(2 * i));
+            int lo = hexDigit(value.charAt(2 * i + 1));
+            if ((hi < 0) || (lo < 0)) {
+                return null;
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    private static int hexDigit(char c) {
+        if ((c >= '0') && (c <= '9')) {
+            return c - '0';
+        }
+        if ((c >= 'a') && (c <= 'f')) {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,163 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import static org.sead.uploader.AbstractUploader.println;
+
+/**
+ * Reads a dataset version's file listing (the response from
+ * /api/datasets/:persistentId/versions/:latest/files) into an
+ * ExistingFileIndex as it arrives, keeping only the fields the index needs,
+ * so memory use doesn't depend on the size of the listing.
+ *
+ * For files Dataverse has ingested (where the file in the dataset was derived
+ * from the uploaded one), the original file name is recorded as well, with an
+ * unknown checksum.
+ *
+ * @author Jim
+ */
+public class FileListingReader {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final ExistingFileIndex index;
+    private boolean convertedFiles = false;
+
+    public FileListingReader(ExistingFileIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @return true if any of the files read were derived from an uploaded file
+     * by Dataverse's ingest process
+     */
+    public boolean hasConvertedFiles() {
+        return convertedFiles;
+    }
+
+    /**
+     * Read the files in a listing into the index.
+     *
+     * @return the number of files in the listing
+     * @throws IOException - if the listing can't be read or isn't in the
+     * expected form
+     */
+    public int read(InputStream in) throws IOException {
+        int count = 0;
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected response listing dataset files");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if ("data".equals(field) && (token == JsonToken.START_ARRAY)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readEntry(parser);
+                        count++;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return count;
+    }
+
+    private void readEntry(JsonParser parser) throws IOException {
+        String dirLabel = null;
+        String filename = null;
+        String contentType = null;
+        String originalFileFormat = null;
+        String originalFileName = null;
+        String type = null;
+        String value = null;
+        long id = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("directoryLabel".equals(field)) {
+                dirLabel = parser.getValueAsString();
+            } else if ("dataFile".equals(field) && (token == JsonToken.START_OBJECT)) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String dfField = parser.currentName();
+                    JsonToken dfToken = parser.nextToken();
+                    switch (dfField) {
+                        case "id":
+                            id = parser.getValueAsLong();
+                            break;
+                        case "filename":
+                            filename = parser.getValueAsString();
+                            break;
+                        case "contentType":
+                            contentType = parser.getValueAsString();
+                            break;
+                        case "originalFileFormat":
+                            originalFileFormat = parser.getValueAsString();
+                            break;
+                        case "originalFileName":
+                            originalFileName = parser.getValueAsString();
+                            break;
+                        case "checksum":
+                            if (dfToken == JsonToken.START_OBJECT) {
+                                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                    String csField = parser.currentName();
+                                    parser.nextToken();
+                                    if ("type".equals(csField)) {
+                                        type = parser.getValueAsString();
+                                    } else if ("value".equals(csField)) {
+                                        value = parser.getValueAsString();
+                                    } else {
+                                        parser.skipChildren();
+                                    }
+                                }
+                            }
+                            break;
+                        default:
+                            parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (filename == null) {
+            return;
+        }
+        if ((originalFileFormat != null) && !originalFileFormat.equals(contentType)) {
+            println("The file named " + filename
+                    + " on the server was created by Dataverse's ingest process from an original uploaded file");
+            convertedFiles = true;
+            if (originalFileName != null) {
+                println("Recording original file, checksum unknown: " + getPath(dirLabel, originalFileName));
+                index.put(dirLabel, originalFileName, "md5", "Unknown", id);
+            }
+        }
+        println("Recording: " + getPath(dirLabel, filename));
+        if ((type == null) || (value == null)) {
+            index.put(dirLabel, filename, "md5", "Unknown", id);
+        } else {
+            index.put(dirLabel, filename, type, value, id);
+        }
+    }
+
+    private static String getPath(String dirLabel, String name) {
+        return (dirLabel == null) ? name : dirLabel + "/" + name;
+    }
+}
@@ -6,13 +6,10 @@
 package org.sead.uploader.dataverse;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 import static org.sead.uploader.AbstractUploader.println;
@@ -28,33 +25,25 @@ public class HttpPartUploadJob implements Runnable {
     long size;
     String signedUrl;
     Resource file;
-    Map eTags;
+    MultipartUpload upload;
+    CloseableHttpClient httpClient;
 
-    static private long partSize = -1;
-    static private CloseableHttpClient httpClient = null;
-    static private HttpClientContext localContext = null;
+    //Attempts to send a part (in each pass over the parts), and the range of the delay before a retry
+    static final int MAX_ATTEMPTS = 5;
+    static final long BASE_RETRY_DELAY = 1000;
+    static final long MAX_RETRY_DELAY = 60000;
 
-    public static void setHttpClient(CloseableHttpClient client) {
-        httpClient = client;
-    }
-
-    public static void setHttpClientContext(HttpClientContext context) {
-        localContext = context;
-    }
-    
-    public static void setPartSize(long ps) {
-        partSize=ps;
-    }
-
-    public HttpPartUploadJob(int partNo, String url, Resource file, long size, Map eTags) throws IllegalStateException {
-        if ((size == -1) || (httpClient == null) || (localContext == null)) {
-            throw new IllegalStateException("partSize not set");
-        }
+    /**
+     * Upload a part and, if the upload has a digest, add the bytes sent to the
+     * digest of the whole file.
+     */
+    public HttpPartUploadJob(CloseableHttpClient httpClient, MultipartUpload upload, int partNo) {
+        this.httpClient = httpClient;
+        this.upload = upload;
         this.partNo = partNo;
-        this.signedUrl = url;
-        this.file = file;
-        this.size=size;
-        this.eTags = eTags;
+        this.signedUrl = upload.getUrl(partNo);
+        this.file = upload.file;
+        this.size = upload.getPartLength(partNo);
     }
 
     /*
@@ -63,16 +52,22 @@ public class HttpPartUploadJob implements Runnable {
 	 * @see java.lang.Runnable#run()
      */
     public void run() {
-        int retries = 3;
         //println("Starting upload of part: " + partNo);
-        while (retries > 0) {
-            if(retries <3) {
-                println("Retrying upload of part: " + partNo);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                long delay = getRetryDelay(attempt);
+                println("Retrying upload of part: " + partNo + " in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
-            try (InputStream is = file.getInputStream((partNo - 1) * partSize, size)) {
-
+            try {
                 HttpPut httpput = new HttpPut(signedUrl);
-                httpput.setEntity(new InputStreamEntity(is, size));
+                HttpEntity entity = file.getRegionEntity((partNo - 1) * upload.partSize, size);
+                httpput.setEntity((upload.digest == null) ? entity : upload.digest.feed(partNo, entity, size));
                 CloseableHttpResponse putResponse = httpClient.execute(httpput);
                 int putStatus = putResponse.getStatusLine().getStatusCode();
                 String putRes = null;
@@ -84,27 +79,36 @@ public class HttpPartUploadJob implements Runnable {
                     //Part successfully stored - parse the eTag from the response and it it to the Map
                     String eTag = putResponse.getFirstHeader("ETag").getValue();
                     eTag= eTag.replace("\"","");
-                    eTags.put(Integer.toString(partNo), eTag);
-                    retries = 0;
+                    upload.partStored(partNo, eTag);
                     //println("Completed upload of part: " + partNo);
+                    return;
+                } else if ((putStatus >= 500) || (putStatus == 429) || (putStatus == 408)) {
+                    println("Upload of part: " + partNo + " failed with status: " + putStatus + " (retrying)");
+                    println("Error response: " + putResponse.getStatusLine() + " : " + putRes);
                 } else {
-                    if (putStatus >= 500) {
-                        println("Upload of part: " + partNo + " failed with status: " + putStatus + " (skipping)");
-                        println("Error response: " + putResponse.getStatusLine() + " : " + putRes);
-                        retries--;
-                    } else {
-                        println("Upload of part: " + partNo + " failed with status: " + putStatus + " (retrying)");
-                        println("Error response: " + putResponse.getStatusLine() + " : " + putRes);
-
-                        retries--;
+                    //e.g. a 403 when the signed URL has expired - sending it again won't help
+                    if (putStatus == 403) {
+                        upload.urlsRejected = true;
                     }
+                    println("Upload of part: " + partNo + " failed with status: " + putStatus + " (skipping)");
+                    println("Error response: " + putResponse.getStatusLine() + " : " + putRes);
+                    return;
                 }
 
             } catch (IOException e) {
                 e.printStackTrace(System.out);
                 println("Error uploading part: " + partNo + " : " + e.getMessage());
-                retries--;
             }
         }
     }
+
+    /**
+     * Exponential backoff with jitter: a random delay between half and all of a
+     * limit that doubles with each attempt, so parts that failed together (e.g.
+     * when the store was briefly overloaded) don't all retry at the same moment.
+     */
+    static long getRetryDelay(int attempt) {
+        long limit = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(limit / 2, limit + 1);
+    }
 }
@@ -0,0 +1,157 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import static org.sead.uploader.AbstractUploader.println;
+
+/**
+ * Watches for the dataset to be unlocked (e.g. after ingest of a tabular file)
+ * for everything that has to wait for that, with one polling loop.
+ *
+ * Callers get a Future from awaitUnlocked() rather than sleeping themselves,
+ * and however many are waiting, only one /locks request is made at a time.
+ * Polling starts quickly and backs off while the lock is held, so short locks
+ * cost little dead time and long ones (big ingests) don't mean a request every
+ * second.
+ *
+ * While anyone is waiting, the dataset is assumed to be locked: callers about
+ * to make a change can use waitIfLocked() to hold off until the wait is over,
+ * without making any request of their own when nobody is waiting.
+ *
+ * @author Jim
+ */
+public class LockMonitor {
+
+    private static final long MIN_DELAY = 200;
+    private static final long MAX_DELAY = 5000;
+
+    private static class Waiter {
+
+        final CompletableFuture<Boolean> unlocked = new CompletableFuture<Boolean>();
+        final long deadline;
+
+        Waiter(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private final BooleanSupplier lockCheck;
+    private final long maxWait;
+    private final ScheduledExecutorService poller;
+
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+    private boolean polling = false;
+    private long delay = MIN_DELAY;
+
+    /**
+     * @param lockCheck - makes one request to see whether the dataset is locked
+     * @param maxWaitSeconds - how long a caller waits before giving up
+     */
+    public LockMonitor(BooleanSupplier lockCheck, int maxWaitSeconds) {
+        this.lockCheck = lockCheck;
+        this.maxWait = maxWaitSeconds * 1000l;
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lock-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return a Future that completes with true once the dataset is unlocked,
+     * or with false if it is still locked after the maximum wait
+     */
+    public synchronized CompletableFuture<Boolean> awaitUnlocked() {
+        Waiter w = new Waiter(System.currentTimeMillis() + maxWait);
+        waiters.add(w);
+        if (!polling) {
+            polling = true;
+            delay = MIN_DELAY;
+            poller.execute(this::poll);
+        }
+        return w.unlocked;
+    }
+
+    /**
+     * Wait (up to the maximum wait) for the dataset to be unlocked.
+     *
+     * @return false if it is still locked
+     */
+    public boolean waitUntilUnlocked() {
+        return awaitUnlocked().join();
+    }
+
+    /**
+     * If anyone is waiting for the dataset to be unlocked, wait as well (up to
+     * the maximum wait); otherwise return right away.
+     *
+     * @return false if the dataset is still locked
+     */
+    public boolean waitIfLocked() {
+        synchronized (this) {
+            if (!polling) {
+                return true;
+            }
+        }
+        return waitUntilUnlocked();
+    }
+
+    private void poll() {
+        boolean locked;
+        try {
+            locked = lockCheck.getAsBoolean();
+        } catch (RuntimeException e) {
+            println("Error checking the dataset lock: " + e.getMessage());
+            locked = false;
+        }
+        List<Waiter> done = new ArrayList<Waiter>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Waiter> i = waiters.iterator(); i.hasNext();) {
+                Waiter w = i.next();
+                if (!locked || (now >= w.deadline)) {
+                    done.add(w);
+                    i.remove();
+                }
+            }
+            if (locked && (delay == MIN_DELAY)) {
+                println("Dataset locked - waiting...");
+            }
+            if (waiters.isEmpty()) {
+                polling = false;
+            } else {
+                poller.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+                delay = Math.min(MAX_DELAY, delay * 2);
+            }
+        }
+        for (Waiter w : done) {
+            if (locked) {
+                println("Dataset still locked after " + (maxWait / 1000) + " seconds - continuing");
+            }
+            w.unlocked.complete(!locked);
+        }
+    }
+
+    public void shutdown() {
+        poller.shutdownNow();
+    }
+}
@@ -0,0 +1,114 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONObject;
+import org.sead.uploader.util.Resource;
+
+/**
+ * The state of one S3 multipart upload: the URLs Dataverse returned for it and
+ * the eTags of the parts stored so far. With a journal, each stored part is
+ * recorded as it completes so that an interrupted upload can be continued by a
+ * later run.
+ *
+ * @author Jim
+ */
+public class MultipartUpload {
+
+    final Resource file;
+    final String storageIdentifier;
+    final String abortUrl;
+    final String completeUrl;
+    final long partSize;
+    final JSONObject urls;
+    final Map<String, String> eTags = new ConcurrentHashMap<String, String>();
+    // Set when storage rejects a part's signed URL, e.g. because it has expired
+    volatile boolean urlsRejected = false;
+    // Calculates the file's checksum from the parts as they are sent, if it isn't already known
+    OrderedDigest digest = null;
+
+    private final UploadJournal journal;
+
+    /**
+     * @param uploadResponse - the data from Dataverse's /uploadurls call (or a
+     * copy saved in the journal)
+     */
+    MultipartUpload(Resource file, JSONObject uploadResponse, long partSize, UploadJournal journal) {
+        this.file = file;
+        this.storageIdentifier = uploadResponse.getString("storageIdentifier");
+        this.abortUrl = uploadResponse.getString("abort");
+        this.completeUrl = uploadResponse.getString("complete");
+        this.urls = uploadResponse.getJSONObject("urls");
+        this.partSize = partSize;
+        this.journal = journal;
+    }
+
+    int getPartCount() {
+        return urls.length();
+    }
+
+    long getPartLength(int partNo) {
+        return Math.min(partSize, file.length() - (partNo - 1) * partSize);
+    }
+
+    String getUrl(int partNo) {
+        /*The .replace("%3B",";") in the next line is a work-around for Dell's Isolon storage S3 implementation which can't handle the endcoded char
+          in the X-Amz-SignedHeaders param. Currently this is the only place the encoded ; is present and we've confirmed that unencoding also works with Amazon's S3 stores.
+          If there are ever issues, we could create a -dell flag, only apply this to the specific param involved, etc. to drop this work-around when not needed.
+         */
+        return urls.getString(Integer.toString(partNo)).replace("%3B", ";");
+    }
+
+    void partStored(int partNo, String eTag) {
+        eTags.put(Integer.toString(partNo), eTag);
+        if (journal != null) {
+            journal.recordPart(file, partNo, eTag);
+        }
+    }
+
+    boolean isStored(int partNo) {
+        return eTags.containsKey(Integer.toString(partNo));
+    }
+
+    List<Integer> getMissingParts() {
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 1; i <= getPartCount(); i++) {
+            if (!isStored(i)) {
+                missing.add(i);
+            }
+        }
+        return missing;
+    }
+
+    JSONObject getETags() {
+        return new JSONObject(eTags);
+    }
+
+    /**
+     * @return the information needed to continue this upload in another run
+     */
+    JSONObject toJSON() {
+        JSONObject upload = new JSONObject();
+        upload.put("storageIdentifier", storageIdentifier);
+        upload.put("abort", abortUrl);
+        upload.put("complete", completeUrl);
+        upload.put("urls", urls);
+        upload.put("partSize", partSize);
+        return upload;
+    }
+}
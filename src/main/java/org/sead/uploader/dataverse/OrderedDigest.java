@@ -0,0 +1,367 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import static org.sead.uploader.AbstractUploader.println;
+import org.sead.uploader.util.Resource;
+
+/**
+ * Calculates the digest of a whole file from the bytes sent to upload its
+ * parts, so a multipart upload only reads the file once.
+ *
+ * The digest has to see the bytes in order. Bytes from the part that is next in
+ * order go straight into the digest. Bytes from later parts are buffered, up to
+ * a memory limit shared by all the digests being calculated at once, so
+ * several large files sent together can't hold more than that between them.
+ * Past that, a later part is no longer tracked and its
+ * range is read from the file again when the digest reaches it, which keeps
+ * memory bounded at the cost of a second read of that part. Those reads are
+ * made on a separate thread, without holding the lock the part streams use,
+ * so they don't hold up any part's upload.
+ *
+ * A retried part restarts its contribution: bytes it fed directly are undone by
+ * restoring a copy of the digest taken when it became the next part. A part
+ * that fails in one pass over the parts can still complete the digest when it
+ * is sent again in a later pass.
+ *
+ * @author Jim
+ */
+public class OrderedDigest {
+
+    private static final int NONE = 0;
+    private static final int DIRECT = 1;
+    private static final int BUFFERING = 2;
+    private static final int BUFFERED = 3;
+    private static final int DONE = 4;
+    private static final int SKIPPED = 5;
+
+    // Reads parts that have to be read from the file again
+    private static final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "digest-reader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String algorithm;
+    private final Resource file;
+    private final long partSize;
+    private final int partCount;
+    // The bytes that can still be buffered, shared with the other digests
+    private final AtomicLong bufferSpace;
+
+    private MessageDigest digest;
+    // A copy of the digest from before nextPart contributed anything
+    private MessageDigest checkpoint;
+    private int nextPart = 1;
+    private boolean broken = false;
+    // Whether nextPart is being read from the file. While it is, the reader
+    // has the digest to itself.
+    private boolean reading = false;
+
+    private final int[] state;
+    private final int[] attempt;
+    private final ByteArrayOutputStream[] buffers;
+
+    /**
+     * @param bufferSpace - the bytes that can be buffered, shared by all the
+     * digests that draw on it (taken while parts are buffered and given back
+     * once they are in the digest or the digest is finished with)
+     */
+    public OrderedDigest(String algorithm, Resource file, int partCount, long partSize, AtomicLong bufferSpace) throws NoSuchAlgorithmException, CloneNotSupportedException {
+        this.algorithm = algorithm;
+        this.file = file;
+        this.partCount = partCount;
+        this.partSize = partSize;
+        this.bufferSpace = bufferSpace;
+        digest = MessageDigest.getInstance(algorithm);
+        checkpoint = (MessageDigest) digest.clone();
+        state = new int[partCount + 1];
+        attempt = new int[partCount + 1];
+        buffers = new ByteArrayOutputStream[partCount + 1];
+    }
+
+    /**
+     * Wrap the entity for a part so that the bytes sent are added to the
+     * digest. Each time the entity is written counts as a new attempt at the
+     * part.
+     */
+    public HttpEntity feed(int partNo, HttpEntity entity, long size) {
+        return new HttpEntityWrapper(entity) {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                int myAttempt = begin(partNo);
+                super.writeTo(new FilterOutputStream(out) {
+                    long count = 0;
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        update(partNo, myAttempt, b, off, len);
+                        count += len;
+                        if (count == size) {
+                            finish(partNo, myAttempt);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private synchronized int begin(int partNo) {
+        attempt[partNo]++;
+        switch (state[partNo]) {
+            case DIRECT:
+                // Undo what the failed attempt added
+                restoreCheckpoint();
+                state[partNo] = NONE;
+                break;
+            case BUFFERING:
+                dropBuffer(partNo);
+                state[partNo] = NONE;
+                break;
+            default:
+                break;
+        }
+        return attempt[partNo];
+    }
+
+    private synchronized void update(int partNo, int myAttempt, byte[] b, int off, int len) {
+        if (broken || (myAttempt != attempt[partNo])) {
+            return;
+        }
+        switch (state[partNo]) {
+            case NONE:
+            case BUFFERING:
+                if (partNo == nextPart) {
+                    // Became the next part - catch up with anything buffered, then go direct
+                    if (buffers[partNo] != null) {
+                        digest.update(buffers[partNo].toByteArray());
+                        dropBuffer(partNo);
+                    }
+                    state[partNo] = DIRECT;
+                    digest.update(b, off, len);
+                } else if (reserve(len)) {
+                    if (buffers[partNo] == null) {
+                        buffers[partNo] = new ByteArrayOutputStream();
+                    }
+                    buffers[partNo].write(b, off, len);
+                    state[partNo] = BUFFERING;
+                } else {
+                    // Over the memory limit - read this part again when the digest gets to it
+                    dropBuffer(partNo);
+                    state[partNo] = SKIPPED;
+                }
+                break;
+            case DIRECT:
+                digest.update(b, off, len);
+                break;
+            default:
+                // BUFFERED, DONE or SKIPPED - already accounted for
+                break;
+        }
+    }
+
+    private synchronized void finish(int partNo, int myAttempt) {
+        if (broken || (myAttempt != attempt[partNo])) {
+            return;
+        }
+        switch (state[partNo]) {
+            case BUFFERING:
+                if (partNo == nextPart) {
+                    digest.update(buffers[partNo].toByteArray());
+                    dropBuffer(partNo);
+                    state[partNo] = DONE;
+                    advance();
+                } else {
+                    state[partNo] = BUFFERED;
+                }
+                break;
+            case DIRECT:
+                state[partNo] = DONE;
+                advance();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Record that a part was stored by an earlier run, so its bytes won't be
+     * sent and have to be read from the file when the digest reaches it.
+     */
+    public synchronized void markStored(int partNo) {
+        if (state[partNo] == NONE) {
+            state[partNo] = SKIPPED;
+        }
+    }
+
+    private void advance() {
+        nextPart++;
+        catchUp();
+    }
+
+    /**
+     * Add any parts that are next in order and already complete (buffered or
+     * left to be read from the file) to the digest. A part to be read from the
+     * file is handed to the reader thread, which carries on from there.
+     */
+    private void catchUp() {
+        while (!broken && !reading && (nextPart <= partCount)) {
+            if (state[nextPart] == BUFFERED) {
+                digest.update(buffers[nextPart].toByteArray());
+                dropBuffer(nextPart);
+            } else if (state[nextPart] == SKIPPED) {
+                reading = true;
+                int partNo = nextPart;
+                reader.execute(() -> readSkipped(partNo));
+                return;
+            } else {
+                break;
+            }
+            state[nextPart] = DONE;
+            nextPart++;
+        }
+        saveCheckpoint();
+    }
+
+    /**
+     * Runs on the reader thread. No other thread updates the digest until
+     * reading is cleared: the only part that could (nextPart) is SKIPPED.
+     */
+    private void readSkipped(int partNo) {
+        boolean ok = readPart(partNo);
+        synchronized (this) {
+            reading = false;
+            if (ok) {
+                state[partNo] = DONE;
+                nextPart++;
+                catchUp();
+            } else {
+                broken = true;
+            }
+            notifyAll();
+        }
+    }
+
+    private boolean readPart(int partNo) {
+        long offset = (partNo - 1) * partSize;
+        long size = Math.min(partSize, file.length() - offset);
+        try (InputStream is = file.getInputStream(offset, size)) {
+            if (is == null) {
+                return false;
+            }
+            byte[] b = new byte[64 * 1024];
+            long total = 0;
+            int n;
+            while ((n = is.read(b)) != -1) {
+                digest.update(b, 0, n);
+                total += n;
+            }
+            return total == size;
+        } catch (IOException e) {
+            println("Error reading part " + partNo + " of " + file.getAbsolutePath() + " for its digest: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean reserve(long bytes) {
+        while (true) {
+            long free = bufferSpace.get();
+            if (free < bytes) {
+                return false;
+            }
+            if (bufferSpace.compareAndSet(free, free - bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private void dropBuffer(int partNo) {
+        if (buffers[partNo] != null) {
+            bufferSpace.addAndGet(buffers[partNo].size());
+            buffers[partNo] = null;
+        }
+    }
+
+    /**
+     * Stop tracking parts and give back any buffer space still held. Called
+     * once the digest is no longer needed.
+     */
+    public synchronized void release() {
+        broken = true;
+        for (int i = 1; i <= partCount; i++) {
+            dropBuffer(i);
+        }
+    }
+
+    private void saveCheckpoint() {
+        try {
+            checkpoint = (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            // Checked in the constructor
+            broken = true;
+        }
+    }
+
+    private void restoreCheckpoint() {
+        try {
+            digest = (MessageDigest) checkpoint.clone();
+        } catch (CloneNotSupportedException e) {
+            broken = true;
+        }
+    }
+
+    /**
+     * @return the hex encoded digest of the whole file, or null if the parts
+     * didn't all make it into the digest
+     */
+    public synchronized String getChecksum() {
+        if (!broken) {
+            catchUp();
+        }
+        try {
+            while (reading) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        String checksum = (broken || (nextPart <= partCount)) ? null : Hex.encodeHexString(digest.digest());
+        release();
+        return checksum;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+}
@@ -0,0 +1,166 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import static org.sead.uploader.AbstractUploader.println;
+import org.sead.uploader.util.Resource;
+
+/**
+ * Collects files that have been sent to storage, from any number of
+ * directories, and adds them to the dataset with one /addFiles call per batch.
+ * A batch is sent when it reaches maxFiles files or maxBytes of file metadata,
+ * when its oldest file has waited maxDelay seconds, or when flush() is called.
+ *
+ * This keeps the number of calls (and waits for the dataset lock afterwards)
+ * down when there are many small directories, and the size of each call down
+ * when there is one very large directory.
+ *
+ * Batches are sent one at a time, in order, on the batcher's own thread, so
+ * adding files only waits if several full batches are already queued.
+ *
+ * @author Jim
+ */
+public class RegistrationBatcher {
+
+    // Full batches that can be queued before add() waits for them to be sent
+    private static final int MAX_QUEUED = 4;
+
+    private final DVUploader uploader;
+    private final int maxFiles;
+    private final long maxBytes;
+    private final long maxDelay;
+
+    private List<Resource> batch = new ArrayList<Resource>();
+    private long batchBytes = 0;
+    private long batchStarted = 0;
+    private int queued = 0;
+
+    // Sends the batches, and checks for overdue ones
+    private final ScheduledExecutorService sender;
+
+    public RegistrationBatcher(DVUploader uploader, int maxFiles, long maxBytes, int maxDelaySeconds) {
+        this.uploader = uploader;
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelaySeconds * 1000l;
+        sender = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "registration");
+            t.setDaemon(true);
+            return t;
+        });
+        sender.scheduleWithFixedDelay(() -> {
+            try {
+                if (isOverdue()) {
+                    sendCurrent();
+                }
+            } catch (RuntimeException e) {
+                // Don't let one failure stop the checks
+                println("Error registering files: " + e.getMessage());
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        println("Registering files in batches of up to " + maxFiles + " files or " + (maxBytes / 1024) + " KB of metadata, sent at least every " + maxDelaySeconds + " seconds");
+    }
+
+    /**
+     * Add a file with metadata (see Resource.getMetadata()) to the current
+     * batch, queueing the batch to be sent if it is full.
+     */
+    public void add(Resource file) {
+        List<Resource> full = null;
+        synchronized (this) {
+            if (batch.isEmpty()) {
+                batchStarted = System.currentTimeMillis();
+            }
+            batch.add(file);
+            batchBytes += file.getMetadata().toString().length();
+            if ((batch.size() >= maxFiles) || (batchBytes >= maxBytes)) {
+                full = takeBatch();
+                try {
+                    while (queued >= MAX_QUEUED) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                queued++;
+            }
+        }
+        if (full != null) {
+            List<Resource> files = full;
+            sender.execute(() -> {
+                try {
+                    uploader.registerFiles(files);
+                } finally {
+                    synchronized (this) {
+                        queued--;
+                        notifyAll();
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized boolean isOverdue() {
+        return !batch.isEmpty() && (System.currentTimeMillis() - batchStarted >= maxDelay);
+    }
+
+    private synchronized List<Resource> takeBatch() {
+        List<Resource> files = batch;
+        batch = new ArrayList<Resource>();
+        batchBytes = 0;
+        return files;
+    }
+
+    // Runs on the sender thread, after any batches queued before it
+    private void sendCurrent() {
+        List<Resource> files = takeBatch();
+        if (!files.isEmpty()) {
+            uploader.registerFiles(files);
+        }
+    }
+
+    /**
+     * Send the current batch, if it isn't empty, and wait until it and all
+     * batches queued before it have been sent.
+     */
+    public void flush() {
+        try {
+            sender.submit(this::sendCurrent).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            println("Error registering files: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Send whatever is left and wait for all batches to be sent.
+     */
+    public void shutdown() {
+        sender.execute(this::sendCurrent);
+        // Stops the overdue check - what is already queued still runs
+        sender.shutdown();
+        try {
+            sender.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import org.sead.uploader.util.Resource;
+
+/**
+ * The state of one file as it moves through a direct upload: the names
+ * Dataverse will accept for it, its fixity checksum, the storageIdentifier
+ * it was stored under and, once registered, its ids.
+ *
+ * @author Jim
+ */
+public class StagedFile {
+
+    final Resource file;
+    // The path of the file within the upload, starting with a '/' and including the file name
+    final String path;
+
+    String goodFileName = null;
+    String goodParentPath = "";
+    String checksum = null;
+    String storageIdentifier = null;
+    String dataId = null;
+    // The database id Dataverse gave the file, if registered on its own
+    long fileId = 0;
+
+    private boolean failed = false;
+
+    StagedFile(Resource file, String path) {
+        this.file = file;
+        this.path = path;
+    }
+
+    void fail() {
+        failed = true;
+    }
+
+    boolean hasFailed() {
+        return failed;
+    }
+}
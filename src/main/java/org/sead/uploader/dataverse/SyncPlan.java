@@ -0,0 +1,248 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.sead.uploader.AbstractUploader.println;
+
+/**
+ * What a run will do: every local file, by the path it has (or would have) in
+ * the dataset, sorted into new files, files already in the dataset (checked
+ * by checksum with -verify, or just by name), files that differ from the copy
+ * in the dataset, and files only in the dataset. It is worked out before any
+ * file is sent, so the totals are known up front and progress can be reported
+ * against them.
+ *
+ * @author Jim
+ */
+public class SyncPlan {
+
+    public enum Category {
+        // Not in the dataset
+        NEW,
+        // In the dataset with the same checksum (-verify)
+        IDENTICAL,
+        // In the dataset, checksum not compared
+        EXISTING,
+        // In the dataset with a different checksum (-verify)
+        CHANGED,
+        // In the dataset but not found locally
+        REMOTE_ONLY
+    }
+
+    static class Entry {
+
+        final long size;
+        // Guarded by the plan - see setCategory()
+        Category category;
+
+        Entry(long size, Category category) {
+            this.size = size;
+            this.category = category;
+        }
+    }
+
+    // By path, in the order the files were found
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    // Totals by category, kept up to date as entries are added and checked
+    private final long[] counts = new long[Category.values().length];
+    private final long[] bytes = new long[Category.values().length];
+
+    // Set by limit(), once planning is complete
+    private long transferFiles = 0;
+    private long transferBytes = 0;
+    private boolean limited = false;
+    private long started = 0;
+    private final AtomicLong filesSent = new AtomicLong(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+
+    synchronized Entry add(String path, long size, Category category) {
+        Entry e = new Entry(size, category);
+        Entry old = entries.put(path, e);
+        if (old != null) {
+            // The same path named twice - only the last counts
+            counts[old.category.ordinal()]--;
+            bytes[old.category.ordinal()] -= old.size;
+        }
+        counts[category.ordinal()]++;
+        bytes[category.ordinal()] += size;
+        return e;
+    }
+
+    /**
+     * Change an entry's category, e.g. once its checksum has been compared.
+     */
+    synchronized void setCategory(Entry e, Category category) {
+        counts[e.category.ordinal()]--;
+        bytes[e.category.ordinal()] -= e.size;
+        e.category = category;
+        counts[category.ordinal()]++;
+        bytes[category.ordinal()] += e.size;
+    }
+
+    /**
+     * @return the plan for the file with this path in the dataset, or null if
+     * it isn't part of the plan
+     */
+    synchronized Category getCategory(String path) {
+        Entry e = entries.get(path);
+        return (e == null) ? null : e.category;
+    }
+
+    synchronized boolean contains(String path) {
+        return entries.containsKey(path);
+    }
+
+    synchronized long getCount(Category category) {
+        return counts[category.ordinal()];
+    }
+
+    synchronized long getBytes(Category category) {
+        return bytes[category.ordinal()];
+    }
+
+    /**
+     * Work out which files will be sent, given that the first skip files found
+     * are passed over and at most max files are sent (as with -skip and
+     * -limit). Called once all files have been added and checked.
+     */
+    synchronized void limit(long skip, long max) {
+        long found = 0;
+        transferFiles = 0;
+        transferBytes = 0;
+        limited = false;
+        for (Entry e : entries.values()) {
+            if (e.category == Category.REMOTE_ONLY) {
+                continue;
+            }
+            if (found++ < skip) {
+                limited = true;
+                continue;
+            }
+            if ((e.category == Category.NEW) || (e.category == Category.CHANGED)) {
+                if (transferFiles >= max) {
+                    limited = true;
+                    continue;
+                }
+                transferFiles++;
+                transferBytes += e.size;
+            }
+        }
+    }
+
+    /**
+     * @return the number of files that will be sent
+     */
+    synchronized long getTransferCount() {
+        return transferFiles;
+    }
+
+    /**
+     * @return the number of bytes that will be sent
+     */
+    synchronized long getTransferBytes() {
+        return transferBytes;
+    }
+
+    void printSummary() {
+        println("\nSYNC PLAN:");
+        for (Category c : Category.values()) {
+            if (c == Category.REMOTE_ONLY) {
+                println(String.format("  %-12s %8d files", c, getCount(c)));
+            } else {
+                println(String.format("  %-12s %8d files %16d bytes", c, getCount(c), getBytes(c)));
+            }
+        }
+        println(String.format("  To send:     %8d files %16d bytes", getTransferCount(), getTransferBytes())
+                + (limited ? " (after -skip/-limit)" : ""));
+    }
+
+    /**
+     * Write the plan as JSON: a summary by category, then each file with its
+     * category and size.
+     */
+    synchronized void write(File f) throws IOException {
+        try (JsonGenerator gen = new JsonFactory().createGenerator(f, JsonEncoding.UTF8)) {
+            gen.useDefaultPrettyPrinter();
+            gen.writeStartObject();
+            gen.writeObjectFieldStart("summary");
+            for (Category c : Category.values()) {
+                gen.writeObjectFieldStart(c.name().toLowerCase());
+                gen.writeNumberField("files", getCount(c));
+                if (c != Category.REMOTE_ONLY) {
+                    gen.writeNumberField("bytes", getBytes(c));
+                }
+                gen.writeEndObject();
+            }
+            gen.writeObjectFieldStart("transfer");
+            gen.writeNumberField("files", getTransferCount());
+            gen.writeNumberField("bytes", getTransferBytes());
+            gen.writeEndObject();
+            gen.writeEndObject();
+            gen.writeArrayFieldStart("files");
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                gen.writeStartObject();
+                gen.writeStringField("path", me.getKey());
+                gen.writeStringField("category", e.category.name().toLowerCase());
+                if (e.category != Category.REMOTE_ONLY) {
+                    gen.writeNumberField("size", e.size);
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+    }
+
+    /**
+     * Start timing the transfers, for the estimates from getProgress().
+     */
+    synchronized void startTransfers() {
+        started = System.currentTimeMillis();
+    }
+
+    void fileSent(long size) {
+        filesSent.incrementAndGet();
+        bytesSent.addAndGet(size);
+    }
+
+    /**
+     * @return how far through the planned transfers this run is, with an
+     * estimate of the time remaining based on the rate so far
+     */
+    String getProgress() {
+        long files = filesSent.get();
+        long bytes = bytesSent.get();
+        long totalBytes = transferBytes;
+        StringBuilder sb = new StringBuilder("PLAN PROGRESS: " + files + " of " + transferFiles + " files, "
+                + bytes + " of " + totalBytes + " bytes");
+        if (totalBytes > 0) {
+            sb.append(String.format(" (%.1f%%)", 100.0 * bytes / totalBytes));
+        }
+        long elapsed = System.currentTimeMillis() - started;
+        if ((bytes > 0) && (elapsed > 0) && (bytes < totalBytes)) {
+            long remaining = (long) ((totalBytes - bytes) * ((double) elapsed / bytes)) / 1000;
+            sb.append(String.format(", about %d:%02d:%02d remaining", remaining / 3600, (remaining / 60) % 60, remaining % 60));
+        }
+        return sb.toString();
+    }
+}
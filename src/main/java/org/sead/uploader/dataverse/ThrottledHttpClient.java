@@ -0,0 +1,121 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * An HttpClient that sends every request body through a BandwidthLimiter,
+ * so all uploads together (parts, single PUTs and posts to Dataverse) stay
+ * within its rate.
+ *
+ * @author Jim
+ */
+public class ThrottledHttpClient extends CloseableHttpClient {
+
+    /**
+     * A request body written at no more than the limiter's rate.
+     */
+    static class ThrottledEntity extends HttpEntityWrapper {
+
+        private final BandwidthLimiter limiter;
+
+        ThrottledEntity(HttpEntity entity, BandwidthLimiter limiter) {
+            super(entity);
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            wrappedEntity.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    take(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int n = Math.min(len, BandwidthLimiter.MAX_CHUNK);
+                        take(n);
+                        out.write(b, off, n);
+                        off += n;
+                        len -= n;
+                    }
+                }
+            });
+        }
+
+        private void take(int bytes) throws IOException {
+            try {
+                limiter.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send data");
+            }
+        }
+    }
+
+    private final CloseableHttpClient client;
+    private final BandwidthLimiter limiter;
+
+    public ThrottledHttpClient(CloseableHttpClient client, BandwidthLimiter limiter) {
+        this.client = client;
+        this.limiter = limiter;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest withBody = (HttpEntityEnclosingRequest) request;
+            HttpEntity entity = withBody.getEntity();
+            if ((entity != null) && !(entity instanceof ThrottledEntity)) {
+                withBody.setEntity(new ThrottledEntity(entity, limiter));
+            }
+        }
+        return client.execute(target, request, context);
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public org.apache.http.params.HttpParams getParams() {
+        return client.getParams();
+    }
+
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+        return client.getConnectionManager();
+    }
+}
@@ -0,0 +1,136 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.impl.client.CloseableHttpClient;
+import static org.sead.uploader.AbstractUploader.println;
+import org.sead.uploader.util.BlockingExecutor;
+
+/**
+ * Sends the parts of all multipart uploads in this run through one set of
+ * threads, so parts from several files can be in flight together and the
+ * connections to storage stay busy from one file to the next.
+ *
+ * Two limits apply across all files: the number of parts being sent at once
+ * (the number of threads) and the number of bytes in parts that have been
+ * submitted but not finished. A file submitting parts waits while the byte
+ * limit is reached. A part bigger than the byte limit is let through when
+ * nothing else is in flight.
+ *
+ * Whole files can also be sent on a second set of threads (see submitFile()),
+ * so that small files, which storage takes in a single PUT, are sent several
+ * at a time rather than one after another. Their PUTs count against the same
+ * byte limit (see acquireBytes()).
+ *
+ * @author Jim
+ */
+public class TransferScheduler {
+
+    private final CloseableHttpClient httpClient;
+    private final BlockingExecutor executor;
+    private final BlockingExecutor fileExecutor;
+    private final long maxBytes;
+    private long bytesInFlight = 0;
+
+    public TransferScheduler(CloseableHttpClient httpClient, int maxParts, long maxBytes) {
+        this.httpClient = httpClient;
+        this.maxBytes = maxBytes;
+        // The byte limit bounds the queue - this just needs to hold everything that fits in it
+        executor = new BlockingExecutor("part-upload", maxParts, 1024);
+        // Files waiting here hold no resources yet - a short queue keeps the scan just ahead of the transfers
+        fileExecutor = new BlockingExecutor("file-transfer", maxParts, 2 * maxParts);
+        println("Part uploads: up to " + maxParts + " part(s) and " + (maxBytes / (1024 * 1024)) + " MB in flight");
+    }
+
+    /**
+     * Queue a part for upload, waiting while the byte limit is reached.
+     *
+     * @return a Future that completes when the part has been stored or its
+     * attempts have failed (see MultipartUpload.isStored())
+     */
+    public CompletableFuture<Void> submit(MultipartUpload upload, int partNo) {
+        long size = upload.getPartLength(partNo);
+        try {
+            acquire(size);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(null);
+        }
+        HttpPartUploadJob job = new HttpPartUploadJob(httpClient, upload, partNo);
+        try {
+            return CompletableFuture.runAsync(job, executor).whenComplete((result, e) -> release(size));
+        } catch (RejectedExecutionException e) {
+            release(size);
+            println("Unable to queue part " + partNo + " of " + upload.storageIdentifier + " : " + e.getMessage());
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Queue the transfer of a whole file, blocking while the queue is full. A
+     * file that turns out to need a multipart upload sends its parts through
+     * submit() as usual.
+     *
+     * @return a Future that completes when the transfer has finished
+     */
+    public CompletableFuture<Void> submitFile(Runnable transfer) {
+        try {
+            return CompletableFuture.runAsync(transfer, fileExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<Void>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Wait until size more bytes can be in flight, for a transfer not sent
+     * through submit(). Each call must be matched by releaseBytes().
+     */
+    void acquireBytes(long size) throws InterruptedException {
+        acquire(size);
+    }
+
+    void releaseBytes(long size) {
+        release(size);
+    }
+
+    private synchronized void acquire(long size) throws InterruptedException {
+        while ((bytesInFlight > 0) && (bytesInFlight + size > maxBytes)) {
+            wait();
+        }
+        bytesInFlight += size;
+    }
+
+    private synchronized void release(long size) {
+        bytesInFlight -= size;
+        notifyAll();
+    }
+
+    public void shutdown() {
+        // Files first - they may still be submitting parts
+        for (BlockingExecutor e : new BlockingExecutor[]{fileExecutor, executor}) {
+            e.shutdown();
+            try {
+                e.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
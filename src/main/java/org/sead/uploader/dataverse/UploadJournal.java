@@ -0,0 +1,330 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.sead.uploader.AbstractUploader.println;
+import org.sead.uploader.util.FileResource;
+import org.sead.uploader.util.Resource;
+
+/**
+ * An append-only record of what has happened to each local file: stored (sent
+ * to the dataset's storage, but not yet added to the dataset), registered
+ * (added to the dataset) or discarded (a stored copy that can't be used). On a
+ * rerun, files already registered don't have to be re-hashed to be verified
+ * and files that were stored but never registered can be registered without
+ * sending them again.
+ *
+ * Multipart uploads in progress are recorded too: the upload's URLs when it
+ * starts and each part's eTag as the part is stored, so an upload interrupted
+ * part way through can be continued instead of started over.
+ *
+ * Each record is one line of JSON, written and flushed as soon as the event
+ * happens. The last record for a path wins. A line cut short by a crash is
+ * ignored when the journal is read back. Entries only apply while the file's
+ * size and modification time are unchanged.
+ *
+ * @author Jim
+ */
+public class UploadJournal {
+
+    public static final String STORED = "stored";
+    public static final String REGISTERED = "registered";
+    public static final String DISCARDED = "discarded";
+    // Multipart upload records
+    public static final String UPLOADING = "uploading";
+    public static final String PART = "part";
+    public static final String ABANDONED = "abandoned";
+
+    public static class Entry {
+
+        final long size;
+        final long mtime;
+        final String algorithm;
+        final String checksum;
+        final String storageIdentifier;
+        final String state;
+
+        Entry(long size, long mtime, String algorithm, String checksum, String storageIdentifier, String state) {
+            this.size = size;
+            this.mtime = mtime;
+            this.algorithm = algorithm;
+            this.checksum = checksum;
+            this.storageIdentifier = storageIdentifier;
+            this.state = state;
+        }
+
+        public boolean isStored() {
+            return STORED.equals(state);
+        }
+
+        public boolean isRegistered() {
+            return REGISTERED.equals(state);
+        }
+    }
+
+    private final File journalFile;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    // Multipart uploads in progress by path - the "uploading" record with the eTags of the parts stored so far added
+    private final Map<String, JSONObject> uploads = new HashMap<String, JSONObject>();
+    private FileOutputStream out = null;
+    private Writer writer = null;
+
+    public UploadJournal(File journalFile) throws IOException {
+        this.journalFile = journalFile;
+        int lines = 0;
+        if (journalFile.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    readRecord(line);
+                }
+            }
+            println("Read " + entries.size() + " entries from upload journal: " + journalFile.getPath());
+            if (!uploads.isEmpty()) {
+                println(uploads.size() + " multipart upload(s) can be resumed");
+            }
+        }
+        if (lines > 2 * (entries.size() + uploads.size()) + 1000) {
+            compact();
+        }
+        out = new FileOutputStream(journalFile, true);
+        writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+
+    private void readRecord(String line) {
+        try {
+            JSONObject record = new JSONObject(line);
+            String path = record.getString("path");
+            String state = record.getString("state");
+            if (UPLOADING.equals(state)) {
+                if (!record.has("eTags")) {
+                    record.put("eTags", new JSONObject());
+                }
+                uploads.put(path, record);
+            } else if (PART.equals(state)) {
+                JSONObject upload = uploads.get(path);
+                if (upload != null) {
+                    upload.getJSONObject("eTags").put(Integer.toString(record.getInt("part")), record.getString("eTag"));
+                }
+            } else if (ABANDONED.equals(state)) {
+                uploads.remove(path);
+            } else if (DISCARDED.equals(state)) {
+                uploads.remove(path);
+                entries.remove(path);
+            } else {
+                uploads.remove(path);
+                entries.put(path, new Entry(record.getLong("size"), record.getLong("mtime"),
+                        record.optString("algorithm", null), record.optString("checksum", null),
+                        record.optString("storageIdentifier", null), state));
+            }
+        } catch (JSONException e) {
+            // A partial line from an interrupted run - ignore it
+        }
+    }
+
+    /**
+     * Rewrite the journal with just the current entries so that it doesn't
+     * grow without bound across many runs.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                w.write(toRecord(e.getKey(), e.getValue()).toString());
+                w.write('\n');
+            }
+            for (JSONObject upload : uploads.values()) {
+                w.write(upload.toString());
+                w.write('\n');
+            }
+        }
+        Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the entry for this file, or null if there isn't one or the file
+     * has changed since it was recorded
+     */
+    public synchronized Entry get(Resource file) {
+        if (!(file instanceof FileResource)) {
+            return null;
+        }
+        Entry e = entries.get(file.getAbsolutePath());
+        if ((e != null) && (e.size == file.length()) && (e.mtime == ((FileResource) file).lastModified())) {
+            return e;
+        }
+        return null;
+    }
+
+    /**
+     * @return the multipart upload of this file that was in progress when an
+     * earlier run stopped, with the parts it stored, or null if there isn't one
+     * or the file has changed since
+     */
+    public synchronized MultipartUpload getMultipartUpload(Resource file) {
+        if (!(file instanceof FileResource)) {
+            return null;
+        }
+        JSONObject record = uploads.get(file.getAbsolutePath());
+        if ((record == null) || (record.getLong("size") != file.length()) || (record.getLong("mtime") != ((FileResource) file).lastModified())) {
+            return null;
+        }
+        JSONObject data = record.getJSONObject("upload");
+        MultipartUpload upload = new MultipartUpload(file, data, data.getLong("partSize"), this);
+        JSONObject eTags = record.getJSONObject("eTags");
+        for (String part : eTags.keySet()) {
+            upload.eTags.put(part, eTags.getString(part));
+        }
+        return upload;
+    }
+
+    public synchronized void recordMultipart(MultipartUpload upload) {
+        if (!(upload.file instanceof FileResource)) {
+            return;
+        }
+        JSONObject record = new JSONObject();
+        record.put("path", upload.file.getAbsolutePath());
+        record.put("size", upload.file.length());
+        record.put("mtime", ((FileResource) upload.file).lastModified());
+        record.put("state", UPLOADING);
+        record.put("upload", upload.toJSON());
+        write(record);
+        record.put("eTags", upload.getETags());
+        uploads.put(upload.file.getAbsolutePath(), record);
+    }
+
+    public synchronized void recordPart(Resource file, int partNo, String eTag) {
+        JSONObject upload = uploads.get(file.getAbsolutePath());
+        if (upload == null) {
+            return;
+        }
+        upload.getJSONObject("eTags").put(Integer.toString(partNo), eTag);
+        JSONObject record = new JSONObject();
+        record.put("path", file.getAbsolutePath());
+        record.put("state", PART);
+        record.put("part", partNo);
+        record.put("eTag", eTag);
+        write(record);
+    }
+
+    /**
+     * Record that a multipart upload was aborted, or can't be continued.
+     */
+    public synchronized void recordAbandoned(Resource file) {
+        if (uploads.remove(file.getAbsolutePath()) != null) {
+            JSONObject record = new JSONObject();
+            record.put("path", file.getAbsolutePath());
+            record.put("state", ABANDONED);
+            write(record);
+        }
+    }
+
+    public void recordStored(Resource file, String algorithm, String checksum, String storageIdentifier) {
+        record(file, algorithm, checksum, storageIdentifier, STORED);
+    }
+
+    public void recordRegistered(Resource file, String algorithm, String checksum, String storageIdentifier) {
+        record(file, algorithm, checksum, storageIdentifier, REGISTERED);
+    }
+
+    public void recordDiscarded(Resource file) {
+        record(file, null, null, null, DISCARDED);
+    }
+
+    private synchronized void record(Resource file, String algorithm, String checksum, String storageIdentifier, String state) {
+        if (!(file instanceof FileResource) || (writer == null)) {
+            return;
+        }
+        String path = file.getAbsolutePath();
+        Entry e = new Entry(file.length(), ((FileResource) file).lastModified(), algorithm, checksum, storageIdentifier, state);
+        uploads.remove(path);
+        if (DISCARDED.equals(state)) {
+            entries.remove(path);
+        } else {
+            entries.put(path, e);
+        }
+        write(toRecord(path, e));
+    }
+
+    private void write(JSONObject record) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(record.toString());
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException io) {
+            println("Unable to write to upload journal: " + io.getMessage());
+        }
+    }
+
+    /**
+     * Force everything written so far to disk.
+     */
+    public synchronized void sync() {
+        try {
+            if (out != null) {
+                out.getFD().sync();
+            }
+        } catch (IOException io) {
+            println("Unable to sync upload journal: " + io.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        sync();
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException io) {
+            println("Error closing upload journal: " + io.getMessage());
+        }
+        writer = null;
+        out = null;
+    }
+
+    private static JSONObject toRecord(String path, Entry e) {
+        JSONObject record = new JSONObject();
+        record.put("path", path);
+        record.put("size", e.size);
+        record.put("mtime", e.mtime);
+        if (e.algorithm != null) {
+            record.put("algorithm", e.algorithm);
+        }
+        if (e.checksum != null) {
+            record.put("checksum", e.checksum);
+        }
+        if (e.storageIdentifier != null) {
+            record.put("storageIdentifier", e.storageIdentifier);
+        }
+        record.put("state", e.state);
+        return record;
+    }
+}
@@ -0,0 +1,177 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONObject;
+import static org.sead.uploader.AbstractUploader.println;
+import org.sead.uploader.util.BlockingExecutor;
+import org.sead.uploader.util.Resource;
+
+/**
+ * Requests upload URLs from Dataverse for files that are about to be uploaded,
+ * while earlier files are still being sent, so that an upload can start
+ * without waiting for the /uploadurls round trip (which, for a large file,
+ * also starts the multipart upload in S3).
+ *
+ * At most lookahead files have URLs requested ahead of time. Signed URLs
+ * expire, so URLs that have used up half of their lifetime by the time their
+ * file is uploaded are discarded and new ones are requested. Multipart uploads
+ * started for URLs that are discarded or never used are aborted.
+ *
+ * @author Jim
+ */
+public class UploadUrlPrefetcher {
+
+    private static class Prefetched {
+
+        final long requested = System.currentTimeMillis();
+        CompletableFuture<JSONObject> urls;
+    }
+
+    // How long signed URLs are assumed to last if the URL doesn't say
+    private static final long DEFAULT_LIFETIME = 60 * 60 * 1000l;
+    private static final Pattern AMZ_DATE = Pattern.compile("[?&]X-Amz-Date=(\\d{8}T\\d{6}Z)");
+    private static final Pattern AMZ_EXPIRES = Pattern.compile("[?&]X-Amz-Expires=(\\d+)");
+
+    private final DVUploader uploader;
+    private final int lookahead;
+    private final ExecutorService executor;
+    private final Map<String, Prefetched> prefetched = new HashMap<String, Prefetched>();
+
+    public UploadUrlPrefetcher(DVUploader uploader, int lookahead) {
+        this.uploader = uploader;
+        this.lookahead = lookahead;
+        executor = new BlockingExecutor("url-prefetch", 2, lookahead);
+        println("Will request upload URLs for up to " + lookahead + " files ahead");
+    }
+
+    /**
+     * Start requesting upload URLs for a file that will be uploaded soon, unless
+     * lookahead files already have URLs waiting.
+     */
+    public synchronized void prefetch(Resource file) {
+        if ((prefetched.size() >= lookahead) || prefetched.containsKey(file.getAbsolutePath())) {
+            return;
+        }
+        Prefetched p = new Prefetched();
+        p.urls = CompletableFuture.supplyAsync(() -> uploader.requestUploadUrls(file), executor);
+        prefetched.put(file.getAbsolutePath(), p);
+    }
+
+    /**
+     * @return the data from an /uploadurls call for this file, or null if none
+     * was requested or the URLs are too close to expiring to use
+     */
+    public JSONObject take(Resource file) {
+        Prefetched p;
+        synchronized (this) {
+            p = prefetched.remove(file.getAbsolutePath());
+        }
+        if (p == null) {
+            return null;
+        }
+        JSONObject urls = p.urls.join();
+        if ((urls != null) && isStale(urls, p.requested)) {
+            println("Upload URLs for " + file.getAbsolutePath() + " are close to expiring - requesting new ones");
+            discard(urls);
+            return null;
+        }
+        return urls;
+    }
+
+    /**
+     * Drop the URLs requested for a file, if they haven't been taken, and
+     * abort the multipart upload started for them. Called once the file's
+     * upload is over, whether or not it used them.
+     */
+    public void release(Resource file) {
+        Prefetched p;
+        synchronized (this) {
+            p = prefetched.remove(file.getAbsolutePath());
+        }
+        if (p != null) {
+            p.urls.thenAccept(urls -> {
+                if (urls != null) {
+                    discard(urls);
+                }
+            });
+        }
+    }
+
+    /**
+     * Abort any multipart uploads started for files that were never uploaded.
+     */
+    public void shutdown() {
+        List<Prefetched> unused;
+        synchronized (this) {
+            unused = new ArrayList<Prefetched>(prefetched.values());
+            prefetched.clear();
+        }
+        for (Prefetched p : unused) {
+            JSONObject urls = p.urls.join();
+            if (urls != null) {
+                discard(urls);
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void discard(JSONObject urls) {
+        if (urls.has("abort")) {
+            uploader.abortUpload(urls.getString("abort"));
+        }
+    }
+
+    private static boolean isStale(JSONObject urls, long requested) {
+        String url = urls.has("url") ? urls.getString("url") : urls.getJSONObject("urls").optString("1", "");
+        long expires = getExpiry(url, requested);
+        return System.currentTimeMillis() > requested + (expires - requested) / 2;
+    }
+
+    /**
+     * @return when a signed URL expires, from its X-Amz-Date and X-Amz-Expires
+     * parameters, or an hour after it was requested if it doesn't have them
+     */
+    static long getExpiry(String url, long requested) {
+        Matcher date = AMZ_DATE.matcher(url);
+        Matcher expires = AMZ_EXPIRES.matcher(url);
+        if (date.find() && expires.find()) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return format.parse(date.group(1)).getTime() + Long.parseLong(expires.group(1)) * 1000;
+            } catch (ParseException | NumberFormatException e) {
+                // Fall through to the default
+            }
+        }
+        return requested + DEFAULT_LIFETIME;
+    }
+}
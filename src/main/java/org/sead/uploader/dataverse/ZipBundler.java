@@ -0,0 +1,271 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.dataverse;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import static org.sead.uploader.AbstractUploader.println;
+import org.sead.uploader.util.BlockingExecutor;
+import org.sead.uploader.util.Resource;
+
+/**
+ * Collects small files and sends them to Dataverse (with -uploadviaserver)
+ * as zip archives, which Dataverse unpacks into the dataset, keeping the
+ * paths of the files within the archive as their directoryLabels. A bundle
+ * is sent when it reaches maxFiles files or maxBytes, or when flush() is
+ * called. Each bundle is written into the request as it is sent, so nothing
+ * is staged on disk.
+ *
+ * This replaces an /add call (and a temporary copy on the server and a wait
+ * for the dataset lock) per file with one per bundle.
+ *
+ * @author Jim
+ */
+public class ZipBundler {
+
+    /**
+     * A file waiting to be sent in a bundle.
+     */
+    static class BundledFile {
+
+        final Resource file;
+        // The path the file will have in the dataset (directoryLabel/name)
+        final String entryPath;
+        // Completed with the file's id once the bundle has been added, or null if it wasn't
+        final CompletableFuture<String> dataId = new CompletableFuture<String>();
+
+        BundledFile(Resource file, String entryPath) {
+            this.file = file;
+            this.entryPath = entryPath;
+        }
+    }
+
+    /**
+     * A zip archive of the files in a bundle, written as the request is sent.
+     * It can be written again if the request is retried.
+     */
+    static class BundleBody extends AbstractContentBody {
+
+        private final List<BundledFile> files;
+        private final String name;
+
+        BundleBody(List<BundledFile> files, String name) {
+            super(ContentType.create("application/zip"));
+            this.files = files;
+            this.name = name;
+        }
+
+        @Override
+        public String getFilename() {
+            return name;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            // Finish the archive without closing the request's stream
+            ZipOutputStream zip = new ZipOutputStream(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            // Mostly small files - compression would cost more time than it saves
+            zip.setLevel(Deflater.BEST_SPEED);
+            byte[] buffer = new byte[8192];
+            for (BundledFile bf : files) {
+                zip.putNextEntry(new ZipEntry(bf.entryPath));
+                try (InputStream in = bf.file.getInputStream()) {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        zip.write(buffer, 0, n);
+                    }
+                }
+                zip.closeEntry();
+            }
+            zip.finish();
+        }
+
+        @Override
+        public String getTransferEncoding() {
+            return MIME.ENC_BINARY;
+        }
+
+        @Override
+        public long getContentLength() {
+            // Not known until the archive has been written
+            return -1;
+        }
+    }
+
+    private final DVUploader uploader;
+    private final int maxFiles;
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final BlockingExecutor posters;
+
+    private List<BundledFile> bundle = new ArrayList<BundledFile>();
+    private Set<String> bundlePaths = new HashSet<String>();
+    private long bundleBytes = 0;
+    private int bundleCount = 0;
+
+    /**
+     * @param maxFileSize - files larger than this are sent on their own
+     * @param posts - the number of bundles sent at once
+     */
+    public ZipBundler(DVUploader uploader, int maxFiles, long maxBytes, long maxFileSize, int posts) {
+        this.uploader = uploader;
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+        posters = new BlockingExecutor("bundle-upload", posts, 1);
+        println("Sending files up to " + (maxFileSize / 1024) + " KB in zip bundles of up to " + maxFiles + " files or " + (maxBytes / (1024 * 1024)) + " MB");
+    }
+
+    /**
+     * @return whether the file should be sent in a bundle. Dataverse unpacks a
+     * zip file sent on its own but not one inside a bundle, and skips hidden
+     * files when it unpacks a bundle, so those are sent on their own.
+     */
+    public boolean accepts(Resource file) {
+        String name = file.getName();
+        return !file.isDirectory() && (file.length() <= maxFileSize)
+                && !name.startsWith(".") && !name.toLowerCase().endsWith(".zip");
+    }
+
+    /**
+     * Add a file to the current bundle, sending the bundle if it is full.
+     *
+     * @param entryPath - the path the file will have in the dataset
+     * (directoryLabel/name)
+     * @return a Future for the id of the file in Dataverse, completed once the
+     * bundle has been sent (null if the file wasn't added)
+     */
+    public CompletableFuture<String> add(Resource file, String entryPath) {
+        BundledFile bf = new BundledFile(file, entryPath);
+        List<BundledFile> previous = null;
+        boolean full;
+        synchronized (this) {
+            if (bundlePaths.contains(entryPath)) {
+                // Two local files with the same name in the dataset - they can't be in the same archive
+                previous = takeBundle();
+            }
+            bundle.add(bf);
+            bundlePaths.add(entryPath);
+            bundleBytes += file.length();
+            full = (bundle.size() >= maxFiles) || (bundleBytes >= maxBytes);
+        }
+        // Sent outside the lock, since sending can block while other bundles are posted
+        if (previous != null) {
+            send(previous);
+        }
+        if (full) {
+            flush();
+        }
+        return bf.dataId;
+    }
+
+    /**
+     * @return whether there are files waiting for the current bundle to be
+     * sent
+     */
+    public synchronized boolean hasPending() {
+        return !bundle.isEmpty();
+    }
+
+    /**
+     * Send the current bundle, if it isn't empty, blocking while the bundles
+     * already queued are being sent.
+     */
+    public void flush() {
+        List<BundledFile> files;
+        synchronized (this) {
+            files = takeBundle();
+        }
+        if (files != null) {
+            send(files);
+        }
+    }
+
+    /**
+     * @return the files in the current bundle, which is started afresh, or
+     * null if it is empty
+     */
+    private List<BundledFile> takeBundle() {
+        if (bundle.isEmpty()) {
+            return null;
+        }
+        List<BundledFile> files = bundle;
+        bundle = new ArrayList<BundledFile>();
+        bundlePaths = new HashSet<String>();
+        bundleBytes = 0;
+        return files;
+    }
+
+    private void send(List<BundledFile> files) {
+        String name;
+        synchronized (this) {
+            name = "bundle-" + (++bundleCount) + ".zip";
+        }
+        try {
+            posters.execute(() -> {
+                try {
+                    uploader.postBundle(files, new BundleBody(files, name));
+                } finally {
+                    // Files that weren't found in the response weren't added
+                    for (BundledFile bf : files) {
+                        bf.dataId.complete(null);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            println("Unable to send " + name + " : " + e.getMessage());
+            for (BundledFile bf : files) {
+                bf.dataId.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Send whatever is left and wait for all bundles to be sent.
+     */
+    public void shutdown() {
+        flush();
+        posters.shutdown();
+        try {
+            posters.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -9,9 +9,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.content.ContentBody;
@@ -55,4 +58,110 @@ public class BagResource extends PublishedResource {
         return in;
     }
 
+    /**
+     * A stream over this entry and how far into the entry it has been read.
+     */
+    private static class Cursor {
+
+        final InputStream in;
+        long position = 0;
+
+        Cursor(InputStream in) {
+            this.in = in;
+        }
+    }
+
+    // Open streams left where earlier reads of parts of this entry stopped
+    private final List<Cursor> cursors = new ArrayList<Cursor>();
+    private static final int MAX_CURSORS = 4;
+
+    /**
+     * Zip entries can't be read from an arbitrary offset, so instead of
+     * decompressing from the start of the entry for every part, reads continue
+     * from the open stream that stopped closest before the offset. When parts
+     * are read roughly in order, the entry is only decompressed a few times in
+     * total.
+     */
+    @Override
+    public InputStream getInputStream(long offset, long length) {
+        Cursor cursor = takeCursor(offset);
+        if (cursor == null) {
+            InputStream in = getInputStream();
+            if (in == null) {
+                return null;
+            }
+            cursor = new Cursor(in);
+        }
+        try {
+            IOUtils.skipFully(cursor.in, offset - cursor.position);
+            cursor.position = offset;
+        } catch (IOException e) {
+            Logger.getLogger(BagResource.class.getName()).log(Level.SEVERE, null, e);
+            IOUtils.closeQuietly(cursor.in);
+            return null;
+        }
+        final Cursor c = cursor;
+        return new InputStream() {
+            long remaining = length;
+            boolean closed = false;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = c.in.read();
+                if (b >= 0) {
+                    c.position++;
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = c.in.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) {
+                    c.position += n;
+                    remaining -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    returnCursor(c);
+                }
+            }
+        };
+    }
+
+    private synchronized Cursor takeCursor(long offset) {
+        Cursor best = null;
+        for (Cursor c : cursors) {
+            if ((c.position <= offset) && ((best == null) || (c.position > best.position))) {
+                best = c;
+            }
+        }
+        if (best != null) {
+            cursors.remove(best);
+        }
+        return best;
+    }
+
+    private void returnCursor(Cursor c) {
+        synchronized (this) {
+            if ((c.position < length()) && (cursors.size() < MAX_CURSORS)) {
+                cursors.add(c);
+                return;
+            }
+        }
+        IOUtils.closeQuietly(c.in);
+    }
+
 }
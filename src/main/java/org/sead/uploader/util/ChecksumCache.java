@@ -0,0 +1,292 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A checksum cache on local disk, so that files that haven't changed since
+ * their checksum was calculated don't have to be read again, e.g. when a
+ * nightly -verify run compares every local file with the dataset.
+ *
+ * Entries are keyed by algorithm and absolute path and are only used if the
+ * file's size, modification time and (where the file system has one) file key
+ * (i.e. the inode) are unchanged.
+ *
+ * The cache file is append-only, with one tab-separated line per checksum.
+ * Several uploader processes can share one cache file: appends are made under
+ * an exclusive file lock, reads under a shared lock, and lines appended by
+ * other processes are picked up before a checksum is calculated. A line cut
+ * short by a crash is ignored.
+ *
+ * Once most of the lines in the file have been superseded, the file is
+ * rewritten with just the current entries, leaving out those for files that
+ * have since been changed or removed. (A line another process appends while
+ * this happens may be lost, which just means that checksum is calculated
+ * again.)
+ */
+public class ChecksumCache {
+
+    private static class Entry {
+
+        final long size;
+        final long mtime;
+        final String fileKey;
+        final String checksum;
+
+        Entry(long size, long mtime, String fileKey, String checksum) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.checksum = checksum;
+        }
+    }
+
+    private static final String NO_KEY = "-";
+    // Don't bother rewriting a file with fewer lines than this
+    private static final long COMPACT_MIN_LINES = 10000;
+
+    private final File cacheFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // Reading and writing the cache file is done while holding fileLock (and
+    // not the lock on this object), so looking up checksums already read never
+    // waits on the disk
+    private final Object fileLock = new Object();
+    // How far into the cache file we have read
+    private volatile long readPosition = 0;
+    // The file key (inode) of the cache file when it was last read, to tell if it has been replaced
+    private Object readFileKey = null;
+    // The number of lines in the cache file (as far as we've read or written)
+    private long fileLines = 0;
+
+    public ChecksumCache(File cacheFile) throws IOException {
+        this.cacheFile = cacheFile;
+        synchronized (fileLock) {
+            refresh();
+            compactIfNeeded();
+        }
+        System.out.println("Checksum cache " + cacheFile.getPath() + " has " + entries.size() + " entries");
+    }
+
+    /**
+     * @return the cached checksum for this file, or null if there isn't one
+     * that is still valid
+     */
+    public String get(Resource file, String algorithm) {
+        if (!(file instanceof FileResource)) {
+            return null;
+        }
+        FileResource fr = (FileResource) file;
+        String key = getKey(fr, algorithm);
+        Entry e = entries.get(key);
+        if ((e == null) && (cacheFile.length() != readPosition)) {
+            // Another process may have calculated it
+            synchronized (fileLock) {
+                try {
+                    refresh();
+                } catch (IOException io) {
+                    System.out.println("Unable to read checksum cache: " + io.getMessage());
+                }
+            }
+            e = entries.get(key);
+        }
+        if ((e != null) && (e.size == fr.length()) && (e.mtime == fr.lastModified()) && e.fileKey.equals(getFileKey(fr))) {
+            return e.checksum;
+        }
+        return null;
+    }
+
+    public void put(Resource file, String algorithm, String checksum) {
+        if (!(file instanceof FileResource) || (checksum == null)) {
+            return;
+        }
+        FileResource fr = (FileResource) file;
+        Entry e = new Entry(fr.length(), fr.lastModified(), getFileKey(fr), checksum);
+        entries.put(getKey(fr, algorithm), e);
+        String line = algorithm + "\t" + e.size + "\t" + e.mtime + "\t" + e.fileKey + "\t" + checksum + "\t"
+                + fr.getAbsolutePath() + "\n";
+        synchronized (fileLock) {
+            try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Released when the channel is closed
+                channel.lock();
+                // Catch up with other processes' lines first, so this one is next to read
+                readNewLines(channel);
+                long end = channel.size();
+                if (end > 0) {
+                    // Don't append to a line left incomplete by a process that crashed
+                    ByteBuffer last = ByteBuffer.allocate(1);
+                    channel.read(last, end - 1);
+                    if (last.get(0) != '\n') {
+                        line = "\n" + line;
+                    }
+                }
+                boolean allRead = (end == readPosition);
+                ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+                while (buf.hasRemaining()) {
+                    end += channel.write(buf, end);
+                }
+                if (allRead) {
+                    // No need to read our own line back
+                    readPosition = end;
+                    fileLines++;
+                }
+            } catch (IOException io) {
+                System.out.println("Unable to write to checksum cache: " + io.getMessage());
+            }
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Read any lines added to the cache file since it was last read. Called
+     * while holding fileLock.
+     */
+    private void refresh() throws IOException {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            // Released when the channel is closed
+            channel.lock(0, Long.MAX_VALUE, true);
+            readNewLines(channel);
+        }
+    }
+
+    private void readNewLines(FileChannel channel) throws IOException {
+        long size = channel.size();
+        Object fileKey = getCacheFileKey();
+        if ((size < readPosition) || !Objects.equals(fileKey, readFileKey)) {
+            // File was replaced (e.g. rewritten by another process) - start over
+            readPosition = 0;
+            fileLines = 0;
+            readFileKey = fileKey;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        long pos = readPosition;
+        while (pos < size) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                pos++;
+                if (b == '\n') {
+                    parseLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    line.reset();
+                    readPosition = pos;
+                    fileLines++;
+                } else {
+                    line.write(b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite the cache file with just the current entries once most of its
+     * lines have been superseded. Called while holding fileLock.
+     */
+    private void compactIfNeeded() {
+        if (!needsCompacting()) {
+            return;
+        }
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Hold off other processes' appends while the file is rewritten
+            channel.lock();
+            // Pick up what other processes have added first
+            readNewLines(channel);
+            if (!needsCompacting()) {
+                // Another process has just rewritten it
+                return;
+            }
+            long lines = 0;
+            try (Writer w = new OutputStreamWriter(Files.newOutputStream(tmpFile.toPath()), StandardCharsets.UTF_8)) {
+                for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+                    Map.Entry<String, Entry> me = i.next();
+                    int split = me.getKey().indexOf('\u0000');
+                    String path = me.getKey().substring(split + 1);
+                    Entry e = me.getValue();
+                    File f = new File(path);
+                    if ((f.length() != e.size) || (f.lastModified() != e.mtime)) {
+                        // The file has changed or is gone - this entry can't be used again
+                        i.remove();
+                        continue;
+                    }
+                    w.write(me.getKey().substring(0, split) + "\t" + e.size + "\t" + e.mtime + "\t" + e.fileKey + "\t"
+                            + e.checksum + "\t" + path + "\n");
+                    lines++;
+                }
+            }
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Checksum cache " + cacheFile.getPath() + " rewritten: " + fileLines + " lines reduced to " + lines);
+            fileLines = lines;
+            readFileKey = getCacheFileKey();
+            readPosition = cacheFile.length();
+        } catch (IOException io) {
+            System.out.println("Unable to rewrite checksum cache: " + io.getMessage());
+            tmpFile.delete();
+        }
+    }
+
+    private boolean needsCompacting() {
+        return (fileLines >= COMPACT_MIN_LINES) && (fileLines >= 2 * entries.size());
+    }
+
+    private Object getCacheFileKey() throws IOException {
+        return Files.readAttributes(cacheFile.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    private void parseLine(String line) {
+        String[] parts = line.split("\t", 6);
+        if (parts.length != 6) {
+            return;
+        }
+        try {
+            entries.put(parts[0] + "\u0000" + parts[5], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3], parts[4]));
+        } catch (NumberFormatException nfe) {
+            // Damaged line - ignore it
+        }
+    }
+
+    private static String getKey(FileResource fr, String algorithm) {
+        return algorithm + "\u0000" + fr.getAbsolutePath();
+    }
+
+    private static String getFileKey(FileResource fr) {
+        Object key = fr.fileKey();
+        return (key == null) ? NO_KEY : key.toString().replace('\t', ' ').replace('\n', ' ');
+    }
+}
@@ -0,0 +1,53 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A region of a local file, read with positional FileChannel reads so that
+ * nothing before the offset is read and the entity can be written any number
+ * of times.
+ */
+public class FileRegionEntity extends ResourceRegionEntity {
+
+    public FileRegionEntity(FileResource resource, long offset, long length) {
+        super(resource, offset, length);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(((FileResource) resource).getFile().toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buf.clear();
+                if (end - position < buf.capacity()) {
+                    buf.limit((int) (end - position));
+                }
+                int n = channel.read(buf, position);
+                if (n == -1) {
+                    throw new IOException("Unexpected end of " + resource.getAbsolutePath() + " at " + position);
+                }
+                out.write(buf.array(), 0, n);
+                position += n;
+            }
+        }
+    }
+}
@@ -15,21 +15,34 @@
  ***************************************************************************** */
 package org.sead.uploader.util;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.HttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
@@ -38,15 +51,30 @@ import org.json.JSONObject;
 public class FileResource extends Resource {
 
     private File f;
+    // Attributes read while listing the parent directory (null for files named on the command line)
+    private BasicFileAttributes attrs = null;
     
     private JSONObject metadata=null;
+    // Hashes calculated for this file so far, by algorithm
+    private final Map<String, String> hashes = new HashMap<String, String>(2);
+
+    private static ChecksumCache checksumCache = null;
+
+    public static void setChecksumCache(ChecksumCache cache) {
+        checksumCache = cache;
+    }
+
+    public static ChecksumCache getChecksumCache() {
+        return checksumCache;
+    }
 
     public FileResource(String fileName) {
         f = new File(fileName);
     }
 
-    private FileResource(File file) {
+    private FileResource(File file, BasicFileAttributes attrs) {
         f = file;
+        this.attrs = attrs;
     }
 
     @Override
@@ -57,7 +85,7 @@ public class FileResource extends Resource {
 
     @Override
     public boolean isDirectory() {
-        return f.isDirectory();
+        return (attrs != null) ? attrs.isDirectory() : f.isDirectory();
     }
 
     @Override
@@ -85,22 +113,44 @@ public class FileResource extends Resource {
         return listResources().iterator();
     }
 
-    private ArrayList<Resource> resources = null;
-
+    /**
+     * Lists the directory lazily - entries are read from the file system as
+     * they are iterated over and are not kept once the iteration has moved on,
+     * so even very large directories can be processed without holding them in
+     * memory. Each call starts a new listing, which holds the directory open
+     * until it has been read to the end or closed with
+     * Resource.closeListing().
+     */
     @Override
     public Iterable<Resource> listResources() {
-        if (resources == null) {
-            resources = new ArrayList<Resource>();
-            for (File file : f.listFiles()) {
-                resources.add(new FileResource(file));
-            }
-        }
-        return resources;
+        return () -> new DirectoryIterator(f.toPath());
     }
 
     @Override
     public long length() {
-        return f.length();
+        return (attrs != null) ? attrs.size() : f.length();
+    }
+
+    /**
+     * @return the last modification time of the file in milliseconds
+     */
+    public long lastModified() {
+        return (attrs != null) ? attrs.lastModifiedTime().toMillis() : f.lastModified();
+    }
+
+    /**
+     * @return the file system's key for the file (i.e. its inode), or null if
+     * it doesn't have one
+     */
+    public Object fileKey() {
+        if (attrs == null) {
+            try {
+                attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return attrs.fileKey();
     }
 
     @Override
@@ -139,32 +189,81 @@ public class FileResource extends Resource {
         return null;
     }
 
+    /**
+     * Reads the region through a FileChannel positioned at the offset rather
+     * than skipping through the file.
+     */
     @Override
-    public String getHash(String algorithm) {
-        MessageDigest digester = null;
-        InputStream is = null;
+    public InputStream getInputStream(long offset, long length) {
         try {
-            is = new FileInputStream(f);
-            digester = MessageDigest.getInstance(algorithm);
-            is = new DigestInputStream(is, digester);
-            byte[] b = new byte[8192];
-            while (is.read(b) != -1)
-				;
-            byte[] digest = digester.digest();
-            return Hex.encodeHexString(digest);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e1) {
-            e1.printStackTrace();
+            FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            channel.position(offset);
+            return BoundedInputStream.builder().setInputStream(Channels.newInputStream(channel)).setMaxCount(length).get();
         } catch (IOException e) {
-            // TODO Auto-generated catch block
             e.printStackTrace();
-        } finally {
-            IOUtils.closeQuietly(is);
         }
         return null;
     }
 
+    @Override
+    public HttpEntity getRegionEntity(long offset, long length) {
+        return new FileRegionEntity(this, offset, length);
+    }
+
+    File getFile() {
+        return f;
+    }
+
+    @Override
+    public String getHash(String algorithm) {
+        return getHashes(Collections.singleton(algorithm)).get(algorithm);
+    }
+
+    /**
+     * Hashes already known for this file (from earlier calls or the checksum
+     * cache) are reused and any others are calculated together in one read of
+     * the file.
+     */
+    @Override
+    public Map<String, String> getHashes(Collection<String> algorithms) {
+        Map<String, String> result = new HashMap<String, String>();
+        List<String> missing = new ArrayList<String>();
+        synchronized (hashes) {
+            for (String algorithm : algorithms) {
+                String hash = hashes.get(algorithm);
+                if ((hash == null) && (checksumCache != null)) {
+                    hash = checksumCache.get(this, algorithm);
+                }
+                if (hash != null) {
+                    result.put(algorithm, hash);
+                } else {
+                    missing.add(algorithm);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            try (InputStream is = new FileInputStream(f)) {
+                Map<String, String> calculated = MultiDigest.digest(is, missing);
+                result.putAll(calculated);
+                if (checksumCache != null) {
+                    for (Map.Entry<String, String> e : calculated.entrySet()) {
+                        checksumCache.put(this, e.getKey(), e.getValue());
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+            } catch (NoSuchAlgorithmException e1) {
+                e1.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        synchronized (hashes) {
+            hashes.putAll(result);
+        }
+        return result;
+    }
+
     @Override
     public JSONObject getMetadata() {
         // No extra metadata by default for files
@@ -177,4 +276,65 @@ public class FileResource extends Resource {
         metadata=jo;
     }
 
+    private static class DirectoryIterator implements Iterator<Resource>, Closeable {
+
+        private DirectoryStream<Path> stream = null;
+        private Iterator<Path> paths = Collections.emptyIterator();
+        private Resource next = null;
+
+        DirectoryIterator(Path dir) {
+            try {
+                stream = Files.newDirectoryStream(dir);
+                paths = stream.iterator();
+            } catch (IOException e) {
+                System.out.println("Unable to list directory: " + dir + " : " + e.getMessage());
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = readNext();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Resource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Resource r = next;
+            next = null;
+            return r;
+        }
+
+        private Resource readNext() {
+            try {
+                if (paths.hasNext()) {
+                    Path p = paths.next();
+                    BasicFileAttributes attrs = null;
+                    try {
+                        // One call for the type, size and mod time rather than a call per File method
+                        attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // e.g. a broken link - let File report on it as it always has
+                    }
+                    return new FileResource(p.toFile(), attrs);
+                }
+            } catch (DirectoryIteratorException e) {
+                System.out.println("Error listing directory: " + e.getCause().getMessage());
+            }
+            close();
+            return null;
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(stream);
+            stream = null;
+            paths = Collections.emptyIterator();
+        }
+    }
+
 }
@@ -0,0 +1,73 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Calculates several digests (e.g. MD5 for Dataverse and SHA-1 for SEAD) from
+ * one pass over the data: each buffer read is fed to every MessageDigest.
+ */
+public class MultiDigest {
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+
+    public MultiDigest(Collection<String> algorithms) throws NoSuchAlgorithmException {
+        for (String algorithm : algorithms) {
+            if (!digests.containsKey(algorithm)) {
+                digests.put(algorithm, MessageDigest.getInstance(algorithm));
+            }
+        }
+    }
+
+    public void update(byte[] b, int off, int len) {
+        for (MessageDigest md : digests.values()) {
+            md.update(b, off, len);
+        }
+    }
+
+    /**
+     * @return the hex encoded digests, keyed by algorithm. The digests are
+     * reset.
+     */
+    public Map<String, String> getHexDigests() {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, MessageDigest> e : digests.entrySet()) {
+            result.put(e.getKey(), Hex.encodeHexString(e.getValue().digest()));
+        }
+        return result;
+    }
+
+    /**
+     * Read the stream to its end and return the hex encoded digests of its
+     * content for each algorithm. The stream is not closed.
+     */
+    public static Map<String, String> digest(InputStream is, Collection<String> algorithms) throws IOException, NoSuchAlgorithmException {
+        MultiDigest md = new MultiDigest(algorithms);
+        byte[] b = new byte[64 * 1024];
+        int n;
+        while ((n = is.read(b)) != -1) {
+            md.update(b, 0, n);
+        }
+        return md.getHexDigests();
+    }
+}
@@ -201,11 +201,26 @@ public class PublishedResource extends Resource {
         return null;
     }
 
+    /**
+     * Uses an HTTP Range request so that only the requested part is
+     * downloaded.
+     */
+    @Override
+    public InputStream getInputStream(long offset, long length) {
+        String uri = resource.getString("similarTo").replace("\"", "%22").replace(";", "%3b");
+        try {
+            return myFactory.getURIRange(new URI(uri), offset, length);
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     @Override
     public String getHash(String algorithm) {
         String hash = null;
         if (algorithm.equals("SHA-1")) {
-            hash = resource.getString("SHA1 Hash");
+            hash = resource.optString("SHA1 Hash", null);
         }
         return hash;
     }
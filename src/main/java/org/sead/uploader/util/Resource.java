@@ -15,10 +15,19 @@
  ***************************************************************************** */
 package org.sead.uploader.util;
 
-import java.io.FileNotFoundException;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.HttpEntity;
 
 import org.apache.http.entity.mime.content.ContentBody;
 import org.json.JSONObject;
@@ -41,32 +50,90 @@ public abstract class Resource implements Iterable<Resource> {
 
     public abstract Iterable<Resource> listResources();
 
+    /**
+     * Release anything (e.g. an open directory) held by an iterator from
+     * listResources() that may not have been read to the end.
+     */
+    public static void closeListing(Iterator<Resource> listing) {
+        if (listing instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) listing);
+        }
+    }
+
     public abstract String getHash(String algorithm);
 
+    /**
+     * Get the hashes of this resource for several algorithms at once. Hashes
+     * available from getHash() are used as is and the rest are calculated
+     * together in a single read of the content.
+     *
+     * @param algorithms - the MessageDigest algorithm names, e.g. MD5, SHA-1
+     * @return the hex encoded hashes by algorithm (missing if they couldn't be
+     * found or calculated)
+     */
+    public Map<String, String> getHashes(Collection<String> algorithms) {
+        Map<String, String> result = new HashMap<String, String>();
+        List<String> missing = new ArrayList<String>();
+        for (String algorithm : algorithms) {
+            String hash = getHash(algorithm);
+            if (hash != null) {
+                result.put(algorithm, hash);
+            } else {
+                missing.add(algorithm);
+            }
+        }
+        if (!missing.isEmpty()) {
+            try (InputStream is = getInputStream()) {
+                if (is != null) {
+                    result.putAll(MultiDigest.digest(is, missing));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
+    }
+
     public abstract JSONObject getMetadata();
     public abstract void setMetadata(JSONObject metadata);
 
     public abstract String getMimeType();
 
     /**
+     * Get a stream for part of the content. This default reads and discards
+     * everything before the offset - subclasses that can seek should override
+     * it.
      *
-     * @param l
-     * @param partSize
-     * @return
+     * @param l - the offset of the first byte
+     * @param partSize - the number of bytes to read
+     * @return the stream, or null if the content couldn't be read
      */
     public InputStream getInputStream(long l, long partSize) {
+        InputStream is = getInputStream();
+        if (is == null) {
+            return null;
+        }
         try {
-            InputStream is = getInputStream();
-            is.skip(l);
+            IOUtils.skipFully(is, l);
             return new BoundedInputStream(is, partSize);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
+            IOUtils.closeQuietly(is);
         }
         return null;
     }
 
-
+    /**
+     * Get a repeatable entity for part of the content, e.g. for one part of a
+     * multipart upload, so that it can be sent again if a request fails.
+     *
+     * @param offset - the offset of the first byte
+     * @param length - the number of bytes
+     */
+    public HttpEntity getRegionEntity(long offset, long length) {
+        return new ResourceRegionEntity(this, offset, length);
+    }
 
 }
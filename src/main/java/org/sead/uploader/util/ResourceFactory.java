@@ -17,6 +17,7 @@ package org.sead.uploader.util;
 
 import com.apicatalog.jsonld.JsonLd;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -25,6 +26,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -212,6 +216,49 @@ System.out.println(mapString);
 
     }
 
+    /**
+     * Get part of the content at a URI with an HTTP Range request. If the
+     * server ignores the Range header and sends everything, the content before
+     * the offset is skipped. A partial response that doesn't start at the
+     * offset is treated as a failed attempt.
+     *
+     * @return a stream of (at most) length bytes starting at offset, or null
+     */
+    final InputStream getURIRange(URI uri, long offset, long length) {
+        int tries = 0;
+        while (tries < 5) {
+            try {
+                HttpGet getResource = new HttpGet(uri);
+                getResource.setHeader("Range", "bytes=" + offset + "-" + (offset + length - 1));
+
+                CloseableHttpResponse response = client.execute(getResource);
+                int status = response.getStatusLine().getStatusCode();
+                if (status == 206) {
+                    // Make sure the server sent the range asked for
+                    Header range = response.getFirstHeader("Content-Range");
+                    if ((range != null) && range.getValue().trim().startsWith("bytes " + offset + "-")) {
+                        return BoundedInputStream.builder().setInputStream(response.getEntity().getContent()).setMaxCount(length).get();
+                    }
+                    System.out.println("Unexpected Content-Range for " + uri.toString() + " : "
+                            + ((range == null) ? "none" : range.getValue()) + " (expected bytes " + offset + "-)");
+                } else if (status == 200) {
+                    InputStream is = response.getEntity().getContent();
+                    IOUtils.skipFully(is, offset);
+                    return BoundedInputStream.builder().setInputStream(is).setMaxCount(length).get();
+                }
+                EntityUtils.consumeQuietly(response.getEntity());
+                tries++;
+            } catch (ClientProtocolException e) {
+                tries += 5;
+                System.out.println("Error getting " + uri.toString() + " : " + e.getMessage());
+            } catch (IOException e) {
+                tries++;
+                System.out.println("Retry error on attempt: " + tries + " : " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
     public Resource getPublishedResource(String id, String parentPath) {
         int i = index.indexOf(id);
         PublishedResource p = new PublishedResource(
@@ -0,0 +1,78 @@
+/** *****************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package org.sead.uploader.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A repeatable entity for a range of bytes from a Resource. Each time it is
+ * written, a new stream for the range is opened with
+ * Resource.getInputStream(offset, length), so a failed request can be sent
+ * again (by the HttpClient or by the caller) without re-creating the entity.
+ */
+public class ResourceRegionEntity extends AbstractHttpEntity {
+
+    protected final Resource resource;
+    protected final long offset;
+    protected final long length;
+
+    public ResourceRegionEntity(Resource resource, long offset, long length) {
+        this.resource = resource;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        InputStream is = resource.getInputStream(offset, length);
+        if (is == null) {
+            throw new IOException("Unable to read " + resource.getAbsolutePath());
+        }
+        return is;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        try (InputStream is = getContent()) {
+            byte[] buf = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = is.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n == -1) {
+                    throw new IOException("Unexpected end of " + resource.getAbsolutePath() + " at " + (offset + length - remaining));
+                }
+                out.write(buf, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}